@@ -0,0 +1,151 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider.benchmarks;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.WikiProvider;
+import org.apache.wiki.attachment.Attachment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Attachment provider operations on a generated wiki: listing the small
+ * attachments of pages, one page or a batch at a time, and streaming payload
+ * attachments of the given size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttachmentProviderBenchmark
+{
+
+    private static final int LIST_BATCH = 100;
+
+    @Param({ "10000" })
+    public int pages;
+
+    @Param({ "1024", "1048576", "104857600" })
+    public int attachmentSize;
+
+    private SyntheticWiki wiki;
+
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void open() throws Exception
+    {
+        wiki = SyntheticWiki.open(pages, 1, attachmentSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void close()
+    {
+        wiki.close();
+    }
+
+    private WikiPage randomPage()
+    {
+        int page = ThreadLocalRandom.current().nextInt(wiki.getAttachedPages());
+        return new WikiPage(wiki.getEngine(), SyntheticWiki.pageName(page));
+    }
+
+    @Benchmark
+    public Collection<?> listAttachments() throws Exception
+    {
+        return wiki.getAttachmentProvider().listAttachments(randomPage());
+    }
+
+    /**
+     * Lists the attachments of {@value #LIST_BATCH} pages in one call, as a
+     * page listing with attachment counts would.
+     */
+    @Benchmark
+    public Map<String, List<Attachment>> listAttachmentsBatch() throws Exception
+    {
+        List<WikiPage> batch = new ArrayList<WikiPage>(LIST_BATCH);
+        for (int i = 0; i < LIST_BATCH; i++)
+        {
+            batch.add(randomPage());
+        }
+        return wiki.getAttachmentProvider().listAttachments(batch);
+    }
+
+    /**
+     * Streams a payload attachment to its end.
+     *
+     * @return the number of bytes read
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long getAttachmentData() throws Exception
+    {
+        int payload = ThreadLocalRandom.current().nextInt(wiki.getPayloads());
+        Attachment att = new Attachment(wiki.getEngine(), SyntheticWiki.PAYLOAD_PAGE,
+                                        SyntheticWiki.payloadName(payload));
+        att.setVersion(WikiProvider.LATEST_VERSION);
+        InputStream in = wiki.getAttachmentProvider().getAttachmentData(att);
+        long total = 0;
+        try
+        {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                total += n;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider.benchmarks;
+
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.WikiProvider;
+import org.apache.wiki.search.QueryItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Page provider operations on a generated wiki. Pages are picked at random,
+ * so the caches see a realistic spread rather than one hot page. Narrow the
+ * wiki sizes with <code>-p pages=10000</code> for a quick run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageProviderBenchmark
+{
+
+    @Param({ "10000", "100000", "1000000" })
+    public int pages;
+
+    /** Versions of every hundredth page. */
+    @Param({ "50" })
+    public int historyDepth;
+
+    private SyntheticWiki wiki;
+
+    private QueryItem[] query;
+
+    @Setup(Level.Trial)
+    public void open() throws Exception
+    {
+        wiki = SyntheticWiki.open(pages, historyDepth, SyntheticWiki.SMALL_ATTACHMENT_BYTES);
+        QueryItem item = new QueryItem();
+        item.word = "marker42";
+        item.type = QueryItem.REQUIRED;
+        query = new QueryItem[] { item };
+    }
+
+    @TearDown(Level.Trial)
+    public void close()
+    {
+        wiki.close();
+    }
+
+    private int randomPage()
+    {
+        return ThreadLocalRandom.current().nextInt(pages);
+    }
+
+    private int randomDeepPage()
+    {
+        int deep = (pages + SyntheticWiki.DEEP_HISTORY_EVERY - 1) / SyntheticWiki.DEEP_HISTORY_EVERY;
+        return ThreadLocalRandom.current().nextInt(deep) * SyntheticWiki.DEEP_HISTORY_EVERY;
+    }
+
+    @Benchmark
+    public String getPageText() throws Exception
+    {
+        return wiki.getPageProvider().getPageText(SyntheticWiki.pageName(randomPage()), WikiProvider.LATEST_VERSION);
+    }
+
+    /**
+     * Reads a random older version of a page with a deep history.
+     */
+    @Benchmark
+    public String getOldPageText() throws Exception
+    {
+        int page = randomDeepPage();
+        int version = 1 + ThreadLocalRandom.current().nextInt(wiki.getVersions(page));
+        return wiki.getPageProvider().getPageText(SyntheticWiki.pageName(page), version);
+    }
+
+    @Benchmark
+    public WikiPage getPageInfo() throws Exception
+    {
+        return wiki.getPageProvider().getPageInfo(SyntheticWiki.pageName(randomPage()), WikiProvider.LATEST_VERSION);
+    }
+
+    /**
+     * Saves a new version of a page outside the generated ones, one per
+     * thread, so the generated histories stay as they are.
+     */
+    @Benchmark
+    public void putPageText() throws Exception
+    {
+        WikiPage page = new WikiPage(wiki.getEngine(), "Scratch" + Thread.currentThread().getId());
+        page.setAuthor("benchmark");
+        wiki.getPageProvider().putPageText(page, SyntheticWiki.pageText(randomPage(), 1, pages));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Collection<?> getAllPages() throws Exception
+    {
+        return wiki.getPageProvider().getAllPages();
+    }
+
+    /**
+     * Searches for a word on one page in a thousand.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Collection<?> findPages()
+    {
+        return wiki.getPageProvider().findPages(query);
+    }
+
+}
@@ -0,0 +1,470 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.wiki.WikiEngine;
+
+import com.ebizarts.jspwiki.providers.jdbcprovider.JDBCAttachmentProvider;
+import com.ebizarts.jspwiki.providers.jdbcprovider.JDBCPageProvider;
+import com.ebizarts.jspwiki.providers.jdbcprovider.JDBCProviderConfiguration;
+
+/**
+ * A generated wiki in an embedded H2 database, with the page and attachment
+ * providers opened on it.
+ * <p>
+ * Page <code>i</code> is named {@link #pageName(int)}; every hundredth page
+ * has a deep history, the others a single version. Page texts are about
+ * {@value #PAGE_CHARS} characters of words from a small vocabulary, plus the
+ * word <code>marker&lt;i % 1000&gt;</code> for selective searches. The first
+ * {@value #ATTACHED_PAGES} pages carry {@value #ATTACHMENTS_PER_PAGE} small
+ * attachments each, and {@link #PAYLOAD_PAGE} carries the payload attachments
+ * of the requested size.
+ * <p>
+ * Databases are kept under <code>target/benchmark-wikis</code> and reused by
+ * later runs with the same shape, since seeding a million pages takes a while.
+ * System properties starting with <code>jdbcprovider.</code> are passed to
+ * the provider configuration without the prefix, so options can be compared
+ * with <code>-jvmArgsAppend -Djdbcprovider.page.latestTable=true</code>.
+ */
+public final class SyntheticWiki
+{
+
+    public static final String PAYLOAD_PAGE = "PayloadPage";
+
+    public static final int PAGE_CHARS = 1000;
+
+    public static final int DEEP_HISTORY_EVERY = 100;
+
+    public static final int ATTACHED_PAGES = 10000;
+
+    public static final int ATTACHMENTS_PER_PAGE = 3;
+
+    public static final int SMALL_ATTACHMENT_BYTES = 1024;
+
+    /** The payload attachments together stay below this size. */
+    private static final long PAYLOAD_BUDGET = 256L * 1024 * 1024;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String[] WORDS = { "alpha", "beta", "gamma", "delta", "wiki", "page", "provider", "database",
+                                           "version", "history", "attachment", "search", "index", "table", "query",
+                                           "connection", "cache", "latency", "throughput", "benchmark", "the", "a",
+                                           "of", "and", "to", "in", "is", "for", "with", "on", "that", "by" };
+
+    private final File directory;
+
+    private final int pages;
+
+    private final int historyDepth;
+
+    private final int payloads;
+
+    private final WikiEngine engine;
+
+    private final JDBCPageProvider pageProvider;
+
+    private final JDBCAttachmentProvider attachmentProvider;
+
+    private SyntheticWiki(File directory, int pages, int historyDepth, int payloads, int payloadBytes)
+        throws Exception
+    {
+        this.directory = directory;
+        this.pages = pages;
+        this.historyDepth = historyDepth;
+        this.payloads = payloads;
+        Properties props = engineProperties();
+        engine = new WikiEngine(props);
+        File seeded = new File(directory, "seeded");
+        if (!seeded.exists())
+        {
+            seed(new JDBCProviderConfiguration(engine, props.getProperty("jspwiki.jdbcprovider.configuration")),
+                 pages, historyDepth, payloads, payloadBytes);
+            if (!seeded.createNewFile())
+            {
+                throw new IOException("Unable to create " + seeded);
+            }
+        }
+        pageProvider = new JDBCPageProvider();
+        pageProvider.initialize(engine, props);
+        attachmentProvider = new JDBCAttachmentProvider();
+        attachmentProvider.initialize(engine, props);
+    }
+
+    /**
+     * Opens the wiki of the given shape, generating it first if needed.
+     *
+     * @param pages
+     *            the number of pages
+     * @param historyDepth
+     *            the number of versions of every hundredth page
+     * @param payloadBytes
+     *            the size of each payload attachment
+     */
+    public static SyntheticWiki open(int pages, int historyDepth, int payloadBytes) throws Exception
+    {
+        int payloads = (int) Math.max(1, Math.min(20, PAYLOAD_BUDGET / payloadBytes));
+        File directory = new File("target/benchmark-wikis/" + pages + "p-" + historyDepth + "v-" + payloads + "x"
+                                  + payloadBytes).getAbsoluteFile();
+        if (!new File(directory, "seeded").exists())
+        {
+            delete(directory);
+            if (!directory.mkdirs())
+            {
+                throw new IOException("Unable to create " + directory);
+            }
+        }
+        writeConfiguration(directory);
+        return new SyntheticWiki(directory, pages, historyDepth, payloads, payloadBytes);
+    }
+
+    /**
+     * Closes the connection pools of the providers.
+     */
+    public void close()
+    {
+        pageProvider.shutdown();
+        attachmentProvider.shutdown();
+    }
+
+    public static String pageName(int i)
+    {
+        return String.format("Page%07d", i);
+    }
+
+    public static String attachmentName(int i)
+    {
+        return "file" + i + ".txt";
+    }
+
+    public static String payloadName(int i)
+    {
+        return "payload" + i + ".bin";
+    }
+
+    public WikiEngine getEngine()
+    {
+        return engine;
+    }
+
+    public JDBCPageProvider getPageProvider()
+    {
+        return pageProvider;
+    }
+
+    public JDBCAttachmentProvider getAttachmentProvider()
+    {
+        return attachmentProvider;
+    }
+
+    public int getPages()
+    {
+        return pages;
+    }
+
+    /**
+     * @return the number of versions of the page
+     */
+    public int getVersions(int page)
+    {
+        return page % DEEP_HISTORY_EVERY == 0 ? historyDepth : 1;
+    }
+
+    public int getAttachedPages()
+    {
+        return Math.min(pages, ATTACHED_PAGES);
+    }
+
+    public int getPayloads()
+    {
+        return payloads;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    private Properties engineProperties()
+    {
+        Properties props = new Properties();
+        props.setProperty("jspwiki.applicationName", "benchmark-" + directory.getName());
+        // the engine itself runs on empty file based providers
+        props.setProperty("jspwiki.pageProvider", "FileSystemProvider");
+        props.setProperty("jspwiki.fileSystemProvider.pageDir", mkdir("pages"));
+        props.setProperty("jspwiki.attachmentProvider", "BasicAttachmentProvider");
+        props.setProperty("jspwiki.basicAttachmentProvider.storageDir", mkdir("attachments"));
+        props.setProperty("jspwiki.workDir", mkdir("work"));
+        props.setProperty("jspwiki.xmlGroupDatabaseFile", new File(directory, "work/groupdatabase.xml").getPath());
+        props.setProperty("jspwiki.xmlUserDatabaseFile", new File(directory, "work/userdatabase.xml").getPath());
+        props.setProperty("jspwiki.searchProvider", "BasicSearchProvider");
+        // no web container to authorize against
+        props.setProperty("jspwiki.security", "container");
+        props.setProperty("jspwiki.jdbcprovider.configuration",
+                          new File(directory, "jdbcprovider.properties").getAbsolutePath());
+        return props;
+    }
+
+    private String mkdir(String name)
+    {
+        File dir = new File(directory, name);
+        dir.mkdirs();
+        return dir.getAbsolutePath();
+    }
+
+    private static void writeConfiguration(File directory) throws IOException
+    {
+        Properties config = new Properties();
+        config.setProperty("connectionProvider", "com.ebizarts.jspwiki.providers.jdbcprovider.JDBCConnectionProvider");
+        config.setProperty("jdbc.driverClassName", "org.h2.Driver");
+        config.setProperty("jdbc.url", "jdbc:h2:file:" + new File(directory, "wiki").getAbsolutePath());
+        config.setProperty("jdbc.username", "sa");
+        config.setProperty("jdbc.password", "benchmark");
+        config.setProperty("database.flavour", "h2");
+        config.setProperty("database.create", "true");
+        config.setProperty("continuationEditMinutes", "0");
+        for (Map.Entry<Object, Object> e : System.getProperties().entrySet())
+        {
+            String key = (String) e.getKey();
+            if (key.startsWith("jdbcprovider."))
+            {
+                config.setProperty(key.substring("jdbcprovider.".length()), (String) e.getValue());
+            }
+        }
+        OutputStream out = new FileOutputStream(new File(directory, "jdbcprovider.properties"));
+        try
+        {
+            config.store(out, "Generated by the benchmarks");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Fills the tables, which the configuration has just created.
+     */
+    private static void seed(JDBCProviderConfiguration config, int pages, int historyDepth, int payloads,
+                             int payloadBytes) throws SQLException
+    {
+        Connection con = config.getConnection();
+        try
+        {
+            con.setAutoCommit(false);
+            seedPages(con, pages, historyDepth);
+            seedAttachments(con, Math.min(pages, ATTACHED_PAGES), payloads, payloadBytes);
+            con.setAutoCommit(true);
+        }
+        finally
+        {
+            config.releaseConnection(con);
+            config.close();
+        }
+    }
+
+    private static void seedPages(Connection con, int pages, int historyDepth) throws SQLException
+    {
+        PreparedStatement insert = con.prepareStatement("INSERT INTO WIKI_PAGE (NAME, VERSION, CHANGE_TIME, CHANGE_BY, "
+                                                        + "CHANGE_NOTE, CONTENT) VALUES (?, ?, ?, ?, ?, ?)");
+        try
+        {
+            long now = System.currentTimeMillis();
+            int rows = 0;
+            for (int i = 0; i < pages; i++)
+            {
+                int versions = i % DEEP_HISTORY_EVERY == 0 ? historyDepth : 1;
+                for (int v = 1; v <= versions; v++)
+                {
+                    insert.setString(1, pageName(i));
+                    insert.setInt(2, v);
+                    insert.setTimestamp(3, new Timestamp(now - (pages - i) * 1000L - (versions - v) * 60000L));
+                    insert.setString(4, "author" + (v % 7));
+                    insert.setString(5, v == 1 ? null : "revision " + v);
+                    insert.setString(6, pageText(i, v, pages));
+                    insert.addBatch();
+                    if (++rows % BATCH_SIZE == 0)
+                    {
+                        insert.executeBatch();
+                        con.commit();
+                    }
+                }
+            }
+            insert.executeBatch();
+            con.commit();
+        }
+        finally
+        {
+            insert.close();
+        }
+    }
+
+    /**
+     * @return the text of a page version; later versions extend earlier ones,
+     *         like real edits
+     */
+    public static String pageText(int page, int version, int pages)
+    {
+        Random random = new Random(page);
+        StringBuilder text = new StringBuilder(PAGE_CHARS + 200);
+        text.append("!!! ").append(pageName(page)).append("\n\nmarker").append(page % 1000).append(' ');
+        while (text.length() < PAGE_CHARS)
+        {
+            if (random.nextInt(40) == 0)
+            {
+                text.append('[').append(pageName(random.nextInt(pages))).append("] ");
+            }
+            else
+            {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ".\n" : " ");
+            }
+        }
+        for (int v = 2; v <= version; v++)
+        {
+            text.append("\n* revision ").append(v).append(": ").append(WORDS[(page + v) % WORDS.length]);
+        }
+        return text.toString();
+    }
+
+    private static void seedAttachments(Connection con, int attachedPages, int payloads, int payloadBytes)
+        throws SQLException
+    {
+        PreparedStatement insert = con.prepareStatement("INSERT INTO WIKI_ATT (PAGENAME, FILENAME, VERSION, CHANGE_TIME, "
+                                                        + "CHANGE_BY, CHANGE_NOTE, DATA, LENGTH) "
+                                                        + "VALUES (?, ?, 1, ?, 'seed', NULL, ?, ?)");
+        try
+        {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            int rows = 0;
+            for (int i = 0; i < attachedPages; i++)
+            {
+                for (int a = 0; a < ATTACHMENTS_PER_PAGE; a++)
+                {
+                    insert.setString(1, pageName(i));
+                    insert.setString(2, attachmentName(a));
+                    insert.setTimestamp(3, now);
+                    insert.setBinaryStream(4, new SyntheticData(i * 31L + a, SMALL_ATTACHMENT_BYTES),
+                                           SMALL_ATTACHMENT_BYTES);
+                    insert.setInt(5, SMALL_ATTACHMENT_BYTES);
+                    insert.addBatch();
+                    if (++rows % BATCH_SIZE == 0)
+                    {
+                        insert.executeBatch();
+                        con.commit();
+                    }
+                }
+            }
+            insert.executeBatch();
+            con.commit();
+            for (int p = 0; p < payloads; p++)
+            {
+                // one at a time, so a batch never holds several large streams
+                insert.setString(1, PAYLOAD_PAGE);
+                insert.setString(2, payloadName(p));
+                insert.setTimestamp(3, now);
+                insert.setBinaryStream(4, new SyntheticData(p, payloadBytes), payloadBytes);
+                insert.setInt(5, payloadBytes);
+                insert.executeUpdate();
+                con.commit();
+            }
+        }
+        finally
+        {
+            insert.close();
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Reproducible bytes of a given length, with the mild redundancy of real
+     * files.
+     */
+    static class SyntheticData extends InputStream
+    {
+        private final Random random;
+
+        private long remaining;
+
+        SyntheticData(long seed, long length)
+        {
+            this.random = new Random(seed);
+            this.remaining = length;
+        }
+
+        public int read()
+        {
+            if (remaining <= 0)
+            {
+                return -1;
+            }
+            remaining--;
+            return 'a' + random.nextInt(16);
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            if (remaining <= 0)
+            {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            for (int i = 0; i < n; i++)
+            {
+                b[off + i] = (byte) ('a' + random.nextInt(16));
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+}
@@ -63,3 +63,84 @@ GO
 
  CREATE  INDEX [WIKI_PAGE_CHANGE_TIME_IX] ON [WIKI_PAGE]([CHANGE_TIME]) ON [PRIMARY]
 GO
+
+-- Search index, only needed with search.mode = index
+CREATE TABLE [WIKI_PAGE_TERM] (
+    [TERM] [nvarchar] (50)  NOT NULL ,
+    [NAME] [nvarchar] (100)  NOT NULL ,
+    [FREQ] [int] NOT NULL ,
+    CONSTRAINT [PK_WIKI_PAGE_TERM] PRIMARY KEY  CLUSTERED 
+    (
+        [TERM],
+        [NAME]
+    )  ON [PRIMARY] 
+) ON [PRIMARY]
+GO
+
+ CREATE  INDEX [WIKI_PAGE_TERM_NAME_IX] ON [WIKI_PAGE_TERM]([NAME]) ON [PRIMARY]
+GO
+
+-- Full-text search, only needed with search.mode = database.
+-- The full-text index needs a single column unique key.
+ALTER TABLE [WIKI_PAGE] ADD [ID] [int] IDENTITY (1, 1) NOT NULL
+GO
+
+ CREATE  UNIQUE  INDEX [WIKI_PAGE_ID_UX] ON [WIKI_PAGE]([ID]) ON [PRIMARY]
+GO
+
+CREATE FULLTEXT CATALOG [WIKI_CATALOG]
+GO
+
+CREATE FULLTEXT INDEX ON [WIKI_PAGE]([CONTENT]) KEY INDEX [WIKI_PAGE_ID_UX] ON [WIKI_CATALOG]
+GO
+
+-- Attachment search index, only needed with search.mode = index
+CREATE TABLE [WIKI_ATT_TERM] (
+    [TERM] [nvarchar] (50)  NOT NULL ,
+    [PAGENAME] [nvarchar] (100)  NOT NULL ,
+    [FILENAME] [nvarchar] (100)  NOT NULL ,
+    [FREQ] [int] NOT NULL ,
+    CONSTRAINT [PK_WIKI_ATT_TERM] PRIMARY KEY  CLUSTERED 
+    (
+        [TERM],
+        [PAGENAME],
+        [FILENAME]
+    )  ON [PRIMARY] 
+) ON [PRIMARY]
+GO
+
+ CREATE  INDEX [WIKI_ATT_TERM_NAME_IX] ON [WIKI_ATT_TERM]([PAGENAME], [FILENAME]) ON [PRIMARY]
+GO
+
+-- Attachment blob storage, only needed with attachment.storage = dedup
+CREATE TABLE [WIKI_ATT_BLOB] (
+    [DATA_HASH] [char] (64)  NOT NULL ,
+    [DATA] [image] NULL ,
+    [LENGTH] [int] NULL ,
+    [REFCOUNT] [int] NOT NULL ,
+    CONSTRAINT [PK_WIKI_ATT_BLOB] PRIMARY KEY  CLUSTERED 
+    (
+        [DATA_HASH]
+    )  ON [PRIMARY] 
+) ON [PRIMARY] TEXTIMAGE_ON [PRIMARY]
+GO
+
+ALTER TABLE [WIKI_ATT] ADD [DATA_HASH] [char] (64) NULL
+GO
+
+-- Latest version of every page, only needed with page.latestTable = true
+CREATE TABLE [WIKI_PAGE_LATEST] (
+    [NAME] [nvarchar] (100)  NOT NULL ,
+    [VERSION] [int] NOT NULL ,
+    [CHANGE_TIME] [datetime] NULL ,
+    [CHANGE_BY] [nvarchar] (50)  NULL ,
+    [CHANGE_NOTE] [nvarchar] (100)  NULL ,
+    CONSTRAINT [PK_WIKI_PAGE_LATEST] PRIMARY KEY  CLUSTERED 
+    (
+        [NAME]
+    )  ON [PRIMARY] 
+) ON [PRIMARY]
+GO
+
+ CREATE  INDEX [WIKI_PAGE_LATEST_CHANGE_TIME_IX] ON [WIKI_PAGE_LATEST]([CHANGE_TIME]) ON [PRIMARY]
+GO
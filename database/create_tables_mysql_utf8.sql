@@ -54,3 +54,55 @@ CREATE TABLE WIKI_ATT
         UNIQUE KEY         PAGENAME         (PAGENAME,FILENAME,VERSION),
         KEY                WIKI_ATT_CHANGE_TIME_IX   (CHANGE_TIME)
     );
+
+-- Search index, only needed with search.mode = index
+CREATE TABLE WIKI_PAGE_TERM
+    (
+        TERM               VARCHAR (50)     CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+        NAME               VARCHAR (100)    CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+        FREQ               INTEGER          NOT NULL,
+        
+        PRIMARY KEY        (TERM, NAME),
+        KEY                WIKI_PAGE_TERM_NAME_IX   (NAME)
+    );
+
+-- Full-text search, only needed with search.mode = database (InnoDB needs MySQL 5.6)
+ALTER TABLE WIKI_PAGE ADD FULLTEXT INDEX WIKI_PAGE_CONTENT_FT (CONTENT);
+
+-- Attachment search index, only needed with search.mode = index
+CREATE TABLE WIKI_ATT_TERM
+    (
+        TERM               VARCHAR (50)     CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+        PAGENAME           VARCHAR (100)    CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+        FILENAME           VARCHAR (100)    CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+        FREQ               INTEGER          NOT NULL,
+        
+        PRIMARY KEY        (TERM, PAGENAME, FILENAME),
+        KEY                WIKI_ATT_TERM_NAME_IX   (PAGENAME, FILENAME)
+    );
+
+-- Attachment blob storage, only needed with attachment.storage = dedup
+CREATE TABLE WIKI_ATT_BLOB
+    (
+        DATA_HASH          CHAR (64)        NOT NULL,
+        DATA               MEDIUMBLOB,
+        LENGTH             INTEGER,
+        REFCOUNT           INTEGER          NOT NULL,
+        
+        PRIMARY KEY        (DATA_HASH)
+    );
+
+ALTER TABLE WIKI_ATT ADD DATA_HASH CHAR (64) NULL;
+
+-- Latest version of every page, only needed with page.latestTable = true
+CREATE TABLE WIKI_PAGE_LATEST
+    (
+        NAME               VARCHAR (100)    CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+        VERSION            INTEGER          NOT NULL,
+        CHANGE_TIME        DATETIME,
+        CHANGE_BY          VARCHAR (50)     CHARACTER SET utf8 COLLATE utf8_bin NOT NULL,
+        CHANGE_NOTE        VARCHAR (100)    CHARACTER SET utf8 COLLATE utf8_bin,
+        
+        PRIMARY KEY        (NAME),
+        KEY                WIKI_PAGE_LATEST_CHANGE_TIME_IX   (CHANGE_TIME)
+    );
@@ -63,3 +63,62 @@ ALTER TABLE ONLY "WIKI_ATT"
     ADD CONSTRAINT "WIKI_ATT_PKEY" PRIMARY KEY ("PAGENAME", "FILENAME", "VERSION");
     
 CREATE INDEX "WIKI_ATT_CHANGE_TIME_IX" ON "WIKI_ATT" USING btree ("CHANGE_TIME");
+
+-- Search index, only needed with search.mode = index
+CREATE TABLE "WIKI_PAGE_TERM"
+    (
+         "TERM" character varying(50) NOT NULL,
+         "NAME" character varying(100) NOT NULL,
+         "FREQ" integer NOT NULL
+    );
+
+ALTER TABLE ONLY "WIKI_PAGE_TERM"
+    ADD CONSTRAINT "WIKI_PAGE_TERM_PKEY" PRIMARY KEY ("TERM", "NAME");
+
+CREATE INDEX "WIKI_PAGE_TERM_NAME_IX" ON "WIKI_PAGE_TERM" USING btree ("NAME");
+
+-- Full-text search, only needed with search.mode = database
+CREATE INDEX "WIKI_PAGE_CONTENT_FTS" ON "WIKI_PAGE" USING gin (to_tsvector('simple', "CONTENT"));
+
+-- Attachment search index, only needed with search.mode = index
+CREATE TABLE "WIKI_ATT_TERM"
+    (
+         "TERM" character varying(50) NOT NULL,
+         "PAGENAME" character varying(100) NOT NULL,
+         "FILENAME" character varying(100) NOT NULL,
+         "FREQ" integer NOT NULL
+    );
+
+ALTER TABLE ONLY "WIKI_ATT_TERM"
+    ADD CONSTRAINT "WIKI_ATT_TERM_PKEY" PRIMARY KEY ("TERM", "PAGENAME", "FILENAME");
+
+CREATE INDEX "WIKI_ATT_TERM_NAME_IX" ON "WIKI_ATT_TERM" USING btree ("PAGENAME", "FILENAME");
+
+-- Attachment blob storage, only needed with attachment.storage = dedup
+CREATE TABLE "WIKI_ATT_BLOB"
+    (
+         "DATA_HASH" character(64) NOT NULL,
+         "LENGTH" integer,
+         "DATA" bytea,
+         "REFCOUNT" integer NOT NULL
+    );
+
+ALTER TABLE ONLY "WIKI_ATT_BLOB"
+    ADD CONSTRAINT "WIKI_ATT_BLOB_PKEY" PRIMARY KEY ("DATA_HASH");
+
+ALTER TABLE "WIKI_ATT" ADD COLUMN "DATA_HASH" character(64);
+
+-- Latest version of every page, only needed with page.latestTable = true
+CREATE TABLE "WIKI_PAGE_LATEST"
+    (
+         "NAME" character varying(100) NOT NULL,
+         "VERSION" integer NOT NULL,
+         "CHANGE_TIME" timestamp without time zone,
+         "CHANGE_BY" character varying(50),
+         "CHANGE_NOTE" character varying(100)
+    );
+
+ALTER TABLE ONLY "WIKI_PAGE_LATEST"
+    ADD CONSTRAINT "WIKI_PAGE_LATEST_PKEY" PRIMARY KEY ("NAME");
+
+CREATE INDEX "WIKI_PAGE_LATEST_CHANGE_TIME_IX" ON "WIKI_PAGE_LATEST" USING btree ("CHANGE_TIME");
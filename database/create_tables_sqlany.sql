@@ -71,3 +71,82 @@ CREATE INDEX "WIKI_ATT_CHANGE_TIME_IX" ON "DBA"."WIKI_ATT"
 go
 commit work
 go
+
+-- Search index, only needed with search.mode = index
+CREATE TABLE "DBA"."WIKI_PAGE_TERM"
+(
+    "TERM"              varchar(50) NOT NULL,
+    "NAME"              varchar(100) NOT NULL,
+    "FREQ"              integer NOT NULL,
+    PRIMARY KEY         ("TERM", "NAME")
+)
+go
+commit work
+go
+
+CREATE INDEX "WIKI_PAGE_TERM_NAME_IX" ON "DBA"."WIKI_PAGE_TERM"
+(
+    "NAME" ASC
+)
+go
+commit work
+go
+
+-- Attachment search index, only needed with search.mode = index
+CREATE TABLE "DBA"."WIKI_ATT_TERM"
+(
+    "TERM"              varchar(50) NOT NULL,
+    "PAGENAME"          varchar(100) NOT NULL,
+    "FILENAME"          varchar(100) NOT NULL,
+    "FREQ"              integer NOT NULL,
+    PRIMARY KEY         ("TERM", "PAGENAME", "FILENAME")
+)
+go
+commit work
+go
+
+CREATE INDEX "WIKI_ATT_TERM_NAME_IX" ON "DBA"."WIKI_ATT_TERM"
+(
+    "PAGENAME" ASC,
+    "FILENAME" ASC
+)
+go
+commit work
+go
+
+-- Attachment blob storage, only needed with attachment.storage = dedup
+CREATE TABLE "DBA"."WIKI_ATT_BLOB"
+(
+    "DATA_HASH"         char(64) NOT NULL,
+    "DATA"              image NULL,
+    "LENGTH"            integer NULL,
+    "REFCOUNT"          integer NOT NULL,
+    PRIMARY KEY         ("DATA_HASH")
+)
+go
+commit work
+go
+
+ALTER TABLE "DBA"."WIKI_ATT" ADD "DATA_HASH" char(64) NULL
+go
+commit work
+go
+
+-- Latest version of every page, only needed with page.latestTable = true
+CREATE TABLE "DBA"."WIKI_PAGE_LATEST"
+(
+    "NAME"              varchar(100) NOT NULL,
+    "VERSION"           integer NOT NULL,
+    "CHANGE_TIME"       datetime NULL,
+    "CHANGE_BY"         varchar(50) NULL,
+    "CHANGE_NOTE"       varchar(100) NULL,
+    PRIMARY KEY         ("NAME")
+)
+go
+CREATE INDEX "WIKI_PAGE_LATEST_CHANGE_TIME_IX" ON "DBA"."WIKI_PAGE_LATEST"
+(
+    "CHANGE_TIME" ASC
+)
+go
+commit work
+go
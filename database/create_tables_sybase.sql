@@ -52,3 +52,51 @@ CREATE TABLE WIKI_ATT
     CONSTRAINT     PK_WIKI_ATT         PRIMARY KEY CLUSTERED (PAGENAME, FILENAME, VERSION)
 )LOCK DATAROWS
 CREATE INDEX       WIKI_ATT_CHANGE_TIME_IX ON WIKI_ATT (CHANGE_TIME)
+
+-- Search index, only needed with search.mode = index
+CREATE TABLE WIKI_PAGE_TERM
+(
+    TERM           nvarchar(50)        NOT NULL,
+    NAME           nvarchar(100)       NOT NULL,
+    FREQ           int                 NOT NULL,
+    
+    CONSTRAINT     PK_WIKI_PAGE_TERM   PRIMARY KEY CLUSTERED (TERM, NAME)
+) LOCK DATAROWS
+CREATE INDEX       WIKI_PAGE_TERM_NAME_IX ON WIKI_PAGE_TERM (NAME)
+
+-- Attachment search index, only needed with search.mode = index
+CREATE TABLE WIKI_ATT_TERM
+(
+    TERM           nvarchar(50)        NOT NULL,
+    PAGENAME       nvarchar(100)       NOT NULL,
+    FILENAME       nvarchar(100)       NOT NULL,
+    FREQ           int                 NOT NULL,
+    
+    CONSTRAINT     PK_WIKI_ATT_TERM    PRIMARY KEY CLUSTERED (TERM, PAGENAME, FILENAME)
+) LOCK DATAROWS
+CREATE INDEX       WIKI_ATT_TERM_NAME_IX ON WIKI_ATT_TERM (PAGENAME, FILENAME)
+
+-- Attachment blob storage, only needed with attachment.storage = dedup
+CREATE TABLE WIKI_ATT_BLOB
+(
+    DATA_HASH      char(64)            NOT NULL,
+    DATA           image               NULL,
+    LENGTH         int                 NULL,
+    REFCOUNT       int                 NOT NULL,
+    
+    CONSTRAINT     PK_WIKI_ATT_BLOB    PRIMARY KEY CLUSTERED (DATA_HASH)
+) LOCK DATAROWS
+ALTER TABLE WIKI_ATT ADD DATA_HASH char(64) NULL
+
+-- Latest version of every page, only needed with page.latestTable = true
+CREATE TABLE WIKI_PAGE_LATEST
+(
+    NAME           nvarchar(100)      NOT NULL,
+    VERSION        int                DEFAULT 0 NOT NULL,
+    CHANGE_TIME    datetime           NULL,
+    CHANGE_BY      nvarchar(50)       NULL,
+    CHANGE_NOTE    nvarchar (100)     NULL,
+    
+    CONSTRAINT     PK_WIKI_PAGE_LATEST PRIMARY KEY CLUSTERED (NAME)
+) LOCK DATAROWS
+CREATE INDEX       WIKI_PAGE_LATEST_CHANGE_TIME_IX ON WIKI_PAGE_LATEST (CHANGE_TIME)
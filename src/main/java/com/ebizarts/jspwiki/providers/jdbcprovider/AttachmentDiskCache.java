@@ -0,0 +1,518 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps copies of attachment versions in a local directory, so popular
+ * attachments are not read from the database on every request. Version
+ * numbers are reused after a delete, possibly by another node sharing the
+ * database, so every copy is stamped with the change time and length of the
+ * version it was read from, and is only served for the same stamp. The local
+ * copies are also dropped when versions are deleted or moved.
+ * <p>
+ * A copy is written while the database stream is read by the caller, into a
+ * temporary file that is renamed into place only once the whole attachment
+ * has been read, so a crash or an aborted download never leaves a partial
+ * copy behind. The files are laid out as
+ * <code>&lt;hash of page&gt;/&lt;hash of file name&gt;.&lt;version&gt;.&lt;stamp&gt;</code>;
+ * the cache is rebuilt from the directory at startup and kept within its size
+ * budget by evicting the least recently used copies.
+ */
+public class AttachmentDiskCache
+{
+
+    protected static final Logger log = Logger.getLogger(AttachmentDiskCache.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private final long maxEntryBytes;
+
+    /** Relative path to file length, least recently used first. */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private long bytes;
+
+    /** Raised by every invalidation, so copies started before it are dropped. */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxBytes
+     *            the total size of the cached copies; copies bigger than a
+     *            tenth of it are not kept
+     */
+    public AttachmentDiskCache(File directory, long maxBytes) throws IOException
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 10;
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create attachment cache directory " + directory);
+        }
+        load();
+    }
+
+    /**
+     * Indexes the copies left by a previous run, oldest first, and removes
+     * temporary files of copies that were never completed.
+     */
+    private synchronized void load()
+    {
+        List<File> files = new ArrayList<File>();
+        File[] pages = directory.listFiles();
+        for (int i = 0; pages != null && i < pages.length; i++)
+        {
+            File[] versions = pages[i].listFiles();
+            for (int j = 0; versions != null && j < versions.length; j++)
+            {
+                if (versions[j].getName().endsWith(TEMP_SUFFIX))
+                {
+                    delete(versions[j]);
+                }
+                else
+                {
+                    files.add(versions[j]);
+                }
+            }
+        }
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : sorted)
+        {
+            String path = file.getParentFile().getName() + "/" + file.getName();
+            entries.put(path, Long.valueOf(file.length()));
+            bytes += file.length();
+        }
+        evict();
+        log.info("Attachment cache in " + directory + ": " + entries.size() + " files, " + bytes + " bytes");
+    }
+
+    /**
+     * @return the stamp identifying the content of an attachment version
+     */
+    public static String stamp(Date lastModified, long length)
+    {
+        return Long.toString(lastModified.getTime(), 36) + "-" + length;
+    }
+
+    /**
+     * @param stamp
+     *            the stamp of the version as stored in the database now
+     * @return a stream over the cached copy, or null if the version is not
+     *         cached with that stamp
+     */
+    public InputStream open(String pageName, String fileName, int version, String stamp)
+    {
+        String path = path(pageName, fileName, version) + stamp;
+        synchronized (this)
+        {
+            if (entries.get(path) == null)
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        try
+        {
+            InputStream in = new FileInputStream(new File(directory, path));
+            hits.incrementAndGet();
+            return in;
+        }
+        catch (FileNotFoundException e)
+        {
+            // removed behind our back
+            synchronized (this)
+            {
+                remove(path);
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a stream read from the database, so the data is copied into the
+     * cache as the caller reads it.
+     *
+     * @return the stream to hand to the caller
+     */
+    public InputStream populate(String pageName, String fileName, int version, String stamp, InputStream data)
+    {
+        File target = new File(directory, path(pageName, fileName, version) + stamp);
+        try
+        {
+            File parent = target.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+            {
+                throw new IOException("Unable to create " + parent);
+            }
+            File temp = File.createTempFile(target.getName() + ".", TEMP_SUFFIX, parent);
+            return new CopyingInputStream(data, temp, target, getGeneration());
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to cache attachment " + pageName + "/" + fileName + ":" + version, e);
+            return data;
+        }
+    }
+
+    private synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Drops the cached copy of one version.
+     */
+    public synchronized void invalidate(String pageName, String fileName, int version)
+    {
+        generation++;
+        removeAll(path(pageName, fileName, version));
+    }
+
+    /**
+     * Drops the cached copies of all versions of an attachment.
+     */
+    public synchronized void invalidate(String pageName, String fileName)
+    {
+        generation++;
+        removeAll(hash(pageName) + "/" + hash(fileName) + ".");
+    }
+
+    /**
+     * Drops the cached copies of all attachments of a page.
+     */
+    public synchronized void invalidatePage(String pageName)
+    {
+        generation++;
+        removeAll(hash(pageName) + "/");
+    }
+
+    public synchronized void clear()
+    {
+        generation++;
+        removeAll("");
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public String toString()
+    {
+        return "size=" + size() + ", bytes=" + getBytes() + "/" + maxBytes + ", hits=" + getHitCount()
+               + ", misses=" + getMissCount();
+    }
+
+    private void removeAll(String prefix)
+    {
+        for (String path : new ArrayList<String>(entries.keySet()))
+        {
+            if (path.startsWith(prefix))
+            {
+                remove(path);
+            }
+        }
+    }
+
+    private void remove(String path)
+    {
+        Long length = entries.remove(path);
+        if (length != null)
+        {
+            bytes -= length.longValue();
+            delete(new File(directory, path));
+        }
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            bytes -= eldest.getValue().longValue();
+            delete(new File(directory, eldest.getKey()));
+        }
+    }
+
+    /**
+     * Moves a completed copy into place and accounts for it.
+     */
+    private synchronized void commit(File temp, File target, long started)
+    {
+        if (started != generation)
+        {
+            // the cache was invalidated while the copy was written
+            delete(temp);
+            return;
+        }
+        String path = target.getParentFile().getName() + "/" + target.getName();
+        // copies of the same version with another stamp are outdated
+        removeAll(path.substring(0, path.lastIndexOf('.') + 1));
+        if (!temp.renameTo(target))
+        {
+            // another reader completed the same copy first
+            delete(temp);
+            return;
+        }
+        entries.put(path, Long.valueOf(target.length()));
+        bytes += target.length();
+        evict();
+    }
+
+    private static void delete(File file)
+    {
+        if (file.exists() && !file.delete())
+        {
+            log.debug("Unable to delete " + file + ", it is probably still being read");
+        }
+    }
+
+    /**
+     * @return the path of the copies of a version, without their stamp
+     */
+    private static String path(String pageName, String fileName, int version)
+    {
+        return hash(pageName) + "/" + hash(fileName) + "." + version + ".";
+    }
+
+    /**
+     * @return a file name safe, fixed length form of a page or file name
+     */
+    private static String hash(String name)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(name.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (int i = 0; i < digest.length; i++)
+            {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e.getMessage());
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Copies everything read into a temporary file, which is committed to the
+     * cache when the end of the data is reached and deleted otherwise.
+     */
+    private class CopyingInputStream extends FilterInputStream
+    {
+        private final File temp;
+
+        private final File target;
+
+        private OutputStream copy;
+
+        private long copied;
+
+        private final long started;
+
+        CopyingInputStream(InputStream in, File temp, File target, long started) throws IOException
+        {
+            super(in);
+            this.temp = temp;
+            this.target = target;
+            this.started = started;
+            this.copy = new FileOutputStream(temp);
+        }
+
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b == -1)
+            {
+                finish(true);
+            }
+            else
+            {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n == -1)
+            {
+                finish(true);
+            }
+            else
+            {
+                write(b, off, n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            // skipped bytes would be missing from the copy
+            finish(false);
+            return super.skip(n);
+        }
+
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                finish(false);
+            }
+        }
+
+        private void write(byte[] b, int off, int len)
+        {
+            if (copy == null)
+            {
+                return;
+            }
+            copied += len;
+            if (copied > maxEntryBytes)
+            {
+                finish(false); // too big to be worth caching
+                return;
+            }
+            try
+            {
+                copy.write(b, off, len);
+            }
+            catch (IOException e)
+            {
+                log.warn("Unable to write attachment cache file " + temp, e);
+                finish(false);
+            }
+        }
+
+        private void finish(boolean complete)
+        {
+            if (copy == null)
+            {
+                return;
+            }
+            try
+            {
+                copy.close();
+            }
+            catch (IOException e)
+            {
+                complete = false;
+            }
+            copy = null;
+            if (complete)
+            {
+                commit(temp, target, started);
+            }
+            else
+            {
+                delete(temp);
+            }
+        }
+    }
+
+}
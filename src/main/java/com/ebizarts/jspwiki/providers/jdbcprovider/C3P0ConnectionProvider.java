@@ -111,4 +111,16 @@ public class C3P0ConnectionProvider extends ConnectionProvider
         return ds.getConnection();
     }
 
+    public void close()
+    {
+        try
+        {
+            DataSources.destroy(ds);
+        }
+        catch (SQLException ex)
+        {
+            log.error("Failed to close ConnectionPool", ex);
+        }
+    }
+
 }
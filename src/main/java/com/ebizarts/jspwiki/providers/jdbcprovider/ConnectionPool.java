@@ -0,0 +1,577 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small pool of driver connections for the {@link JDBCConnectionProvider}.
+ * <p>
+ * Idle connections are kept on a lock-free stack, so borrowing and returning a
+ * connection is a compare-and-set, and the most recently used connections are
+ * handed out first while the others age and get evicted. A semaphore bounds
+ * the number of connections in use; a borrower waits for a permit only when
+ * all of them are taken. A connection that has been idle longer than the
+ * validation interval is checked with the validation query before it is
+ * handed out.
+ * <p>
+ * The borrower gets a wrapper whose <code>close()</code> returns the
+ * connection to the pool, so the provider's usual release code works
+ * unchanged. A connection is closed instead of returned when it reported a
+ * connection error (SQL state class 08) while it was borrowed.
+ */
+public class ConnectionPool
+{
+
+    protected static final Logger log = Logger.getLogger(ConnectionPool.class);
+
+    private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+    private final String url;
+
+    private final Properties connectionProperties;
+
+    private final int maxSize;
+
+    private final int minIdle;
+
+    private final long maxWait;
+
+    private final long idleTimeout;
+
+    private final long validationInterval;
+
+    private volatile String validationQuery;
+
+    private final Semaphore permits;
+
+    private final AtomicReference<Node> idle = new AtomicReference<Node>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicInteger openCount = new AtomicInteger();
+
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * @param maxSize
+     *            the most connections in use at a time
+     * @param minIdle
+     *            the number of idle connections kept open
+     * @param maxWait
+     *            milliseconds to wait for a connection when all are in use
+     * @param idleTimeout
+     *            milliseconds after which an idle connection beyond minIdle is
+     *            closed
+     * @param validationInterval
+     *            milliseconds a connection may be idle before it is validated
+     *            on borrow
+     */
+    public ConnectionPool(String url, Properties connectionProperties, int maxSize, int minIdle, long maxWait,
+                          long idleTimeout, long validationInterval)
+    {
+        this.url = url;
+        this.connectionProperties = connectionProperties;
+        this.maxSize = maxSize;
+        this.minIdle = Math.min(minIdle, maxSize);
+        this.maxWait = maxWait;
+        this.idleTimeout = idleTimeout;
+        this.validationInterval = validationInterval;
+        this.permits = new Semaphore(maxSize);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new EvictorThreadFactory());
+        long period = Math.max(1000, Math.min(idleTimeout, 60 * 1000));
+        evictor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                evict();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        fill();
+    }
+
+    /**
+     * Sets the statement used to validate idle connections, null to skip
+     * validation.
+     */
+    public void setValidationQuery(String validationQuery)
+    {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * @return a pooled connection; closing it returns it to the pool
+     * @throws SQLException
+     *             if no connection became free within the wait time, or a new
+     *             one could not be opened
+     */
+    public Connection getConnection() throws SQLException
+    {
+        try
+        {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+            {
+                throw new SQLException("Timed out after " + maxWait + " ms waiting for a database connection (" + this
+                                       + ")");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        try
+        {
+            PooledConnection pooled;
+            while ((pooled = pop()) != null)
+            {
+                if (System.currentTimeMillis() - pooled.lastUsed < validationInterval || validate(pooled))
+                {
+                    return new Lease(pooled).proxy;
+                }
+                discard(pooled);
+            }
+            return new Lease(open()).proxy;
+        }
+        catch (SQLException e)
+        {
+            permits.release();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the idle connections and stops the evictor. Connections in use
+     * are closed when they are returned.
+     */
+    public void close()
+    {
+        evictor.shutdownNow();
+        Node node = idle.getAndSet(null);
+        for (; node != null; node = node.next)
+        {
+            idleCount.decrementAndGet();
+            discard(node.connection);
+        }
+    }
+
+    /**
+     * @return the statement cache of the physical connection behind a
+     *         connection of this pool, created on first use; null if the
+     *         connection is not from this pool or has been returned
+     */
+    public StatementCache getStatementCache(Connection connection, int maxSize, AtomicLong hits, AtomicLong misses)
+    {
+        if (!Proxy.isProxyClass(connection.getClass()))
+        {
+            return null;
+        }
+        InvocationHandler handler = Proxy.getInvocationHandler(connection);
+        if (!(handler instanceof Lease) || ((Lease) handler).isReturned())
+        {
+            return null;
+        }
+        PooledConnection pooled = ((Lease) handler).pooled;
+        synchronized (pooled)
+        {
+            if (pooled.statements == null)
+            {
+                pooled.statements = new StatementCache(pooled.raw, maxSize, hits, misses);
+            }
+            return pooled.statements;
+        }
+    }
+
+    private PooledConnection open() throws SQLException
+    {
+        Connection raw = DriverManager.getConnection(url, connectionProperties);
+        openCount.incrementAndGet();
+        return new PooledConnection(raw);
+    }
+
+    private void discard(PooledConnection pooled)
+    {
+        openCount.decrementAndGet();
+        try
+        {
+            pooled.raw.close();
+        }
+        catch (SQLException e)
+        {
+            log.debug("Error closing pooled connection", e);
+        }
+    }
+
+    private boolean validate(PooledConnection pooled)
+    {
+        String sql = validationQuery;
+        if (sql == null)
+        {
+            return true;
+        }
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = pooled.raw.createStatement();
+            rs = stmt.executeQuery(sql);
+            return true;
+        }
+        catch (SQLException e)
+        {
+            log.info("Discarding pooled connection that failed validation: " + e.getMessage());
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                if (rs != null)
+                {
+                    rs.close();
+                }
+                if (stmt != null)
+                {
+                    stmt.close();
+                }
+            }
+            catch (SQLException e)
+            {
+                // the connection is discarded or validated anyway
+            }
+        }
+    }
+
+    /**
+     * Takes a connection back from a lease. A connection left in a
+     * transaction is rolled back, so the next borrower starts clean.
+     */
+    private void giveBack(PooledConnection pooled, boolean broken)
+    {
+        try
+        {
+            if (broken || pooled.raw.isClosed())
+            {
+                discard(pooled);
+                return;
+            }
+            if (!pooled.raw.getAutoCommit())
+            {
+                pooled.raw.rollback();
+                pooled.raw.setAutoCommit(true);
+            }
+            pooled.raw.clearWarnings();
+            pooled.lastUsed = System.currentTimeMillis();
+            push(pooled);
+        }
+        catch (SQLException e)
+        {
+            log.info("Discarding pooled connection that could not be reset: " + e.getMessage());
+            discard(pooled);
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    private PooledConnection pop()
+    {
+        while (true)
+        {
+            Node top = idle.get();
+            if (top == null)
+            {
+                return null;
+            }
+            if (idle.compareAndSet(top, top.next))
+            {
+                idleCount.decrementAndGet();
+                return top.connection;
+            }
+        }
+    }
+
+    private void push(PooledConnection pooled)
+    {
+        Node node = new Node(pooled);
+        while (true)
+        {
+            node.next = idle.get();
+            if (idle.compareAndSet(node.next, node))
+            {
+                idleCount.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the connections that were idle too long, keeping minIdle of
+     * them, and opens new ones up to minIdle. The idle stack is taken as a
+     * whole; borrowers arriving meanwhile open a connection of their own, and
+     * any surplus is closed by the next run.
+     */
+    private void evict()
+    {
+        try
+        {
+            Node node = idle.getAndSet(null);
+            int taken = 0;
+            Node keep = null;
+            for (; node != null; node = node.next)
+            {
+                taken++;
+                keep = new Node(node.connection, keep);
+            }
+            idleCount.addAndGet(-taken);
+            // keep is now oldest first, pushing it back restores the order
+            long now = System.currentTimeMillis();
+            int remaining = taken;
+            for (; keep != null; keep = keep.next)
+            {
+                boolean expired = now - keep.connection.lastUsed >= idleTimeout && remaining > minIdle;
+                if (expired || openCount.get() > maxSize)
+                {
+                    discard(keep.connection);
+                }
+                else
+                {
+                    push(keep.connection);
+                }
+                remaining--;
+            }
+            fill();
+            if (log.isDebugEnabled())
+            {
+                log.debug("Connection pool after eviction: " + this);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.warn("Connection pool eviction failed", e);
+        }
+    }
+
+    private void fill()
+    {
+        while (idleCount.get() < minIdle && openCount.get() < maxSize)
+        {
+            try
+            {
+                push(open());
+            }
+            catch (SQLException e)
+            {
+                log.warn("Unable to open an idle pool connection: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    public int getOpenCount()
+    {
+        return openCount.get();
+    }
+
+    public int getIdleCount()
+    {
+        return idleCount.get();
+    }
+
+    public String toString()
+    {
+        return "open=" + openCount.get() + ", idle=" + idleCount.get() + ", inUse="
+               + (maxSize - permits.availablePermits()) + ", maxSize=" + maxSize;
+    }
+
+    private static class Node
+    {
+        final PooledConnection connection;
+
+        Node next;
+
+        Node(PooledConnection connection)
+        {
+            this.connection = connection;
+        }
+
+        Node(PooledConnection connection, Node next)
+        {
+            this.connection = connection;
+            this.next = next;
+        }
+    }
+
+    private static class PooledConnection
+    {
+        final Connection raw;
+
+        volatile long lastUsed = System.currentTimeMillis();
+
+        /** Prepared statements kept with the connection, closed with it. */
+        StatementCache statements;
+
+        PooledConnection(Connection raw)
+        {
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * One borrowing of a pooled connection. Once closed, the lease refuses
+     * further use, so a stale reference cannot reach the next borrower.
+     */
+    private class Lease implements InvocationHandler
+    {
+        final PooledConnection pooled;
+
+        final Connection proxy;
+
+        private boolean closed;
+
+        private boolean broken;
+
+        Lease(PooledConnection pooled)
+        {
+            this.pooled = pooled;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                             new Class<?>[] { Connection.class }, this);
+        }
+
+        public Object invoke(Object target, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if ("close".equals(name) && method.getParameterTypes().length == 0)
+            {
+                release();
+                return null;
+            }
+            if ("isClosed".equals(name) && method.getParameterTypes().length == 0)
+            {
+                synchronized (this)
+                {
+                    if (closed)
+                    {
+                        return Boolean.TRUE;
+                    }
+                }
+            }
+            else if ("equals".equals(name) && method.getParameterTypes().length == 1)
+            {
+                return Boolean.valueOf(target == args[0]);
+            }
+            else if ("hashCode".equals(name) && method.getParameterTypes().length == 0)
+            {
+                return Integer.valueOf(System.identityHashCode(target));
+            }
+            else if ("toString".equals(name) && method.getParameterTypes().length == 0)
+            {
+                return "Pooled " + pooled.raw;
+            }
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    throw new SQLException("Connection has been returned to the pool");
+                }
+            }
+            try
+            {
+                return method.invoke(pooled.raw, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException)
+                {
+                    String state = ((SQLException) cause).getSQLState();
+                    if (state != null && state.startsWith("08"))
+                    {
+                        broken = true;
+                    }
+                }
+                throw cause;
+            }
+        }
+
+        synchronized boolean isReturned()
+        {
+            return closed;
+        }
+
+        private void release()
+        {
+            synchronized (this)
+            {
+                if (closed)
+                {
+                    return;
+                }
+                closed = true;
+            }
+            giveBack(pooled, broken);
+        }
+    }
+
+    private static class EvictorThreadFactory implements ThreadFactory
+    {
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "JDBCProvider-pool-evictor-" + POOL_COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
@@ -29,9 +29,14 @@
 package com.ebizarts.jspwiki.providers.jdbcprovider;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.wiki.WikiEngine;
 import org.apache.wiki.api.exceptions.NoRequiredPropertyException;
@@ -56,16 +61,107 @@ public abstract class ConnectionProvider
 
     protected static final String DRIVER_PROP_PREFIX = "driver";
 
+    /** Statement caches of the connections in use, dropped on release. */
+    private final Map<Connection, StatementCache> statementCaches = Collections
+        .synchronizedMap(new WeakHashMap<Connection, StatementCache>());
+
+    private int statementCacheSize;
+
+    protected final AtomicLong statementHits = new AtomicLong();
+
+    protected final AtomicLong statementMisses = new AtomicLong();
+
     public abstract void initialize(WikiEngine engine, Properties wikiProps) throws NoRequiredPropertyException;
 
     public abstract Connection getConnection(WikiEngine engine) throws SQLException;
 
+    /**
+     * Called once the flavour SQL has been loaded, with the statement that
+     * checks a connection. Providers that validate connections themselves may
+     * use it.
+     */
+    public void setValidationQuery(String sql)
+    {
+    }
+
+    /**
+     * Sets the number of prepared statements kept per connection, 0 to
+     * prepare every statement anew.
+     */
+    public void setStatementCacheSize(int size)
+    {
+        statementCacheSize = size;
+    }
+
+    public int getStatementCacheSize()
+    {
+        return statementCacheSize;
+    }
+
+    /**
+     * Prepares a statement on a connection of this provider, reusing a
+     * statement prepared earlier on the same connection where possible.
+     * Closing the statement returns it for reuse.
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException
+    {
+        if (statementCacheSize <= 0)
+        {
+            return connection.prepareStatement(sql);
+        }
+        return getStatementCache(connection).prepare(sql);
+    }
+
+    /**
+     * Returns the statement cache of a connection. The connections of an
+     * external pool cannot be recognized across borrowings, so by default the
+     * cache lives until the connection is released; providers that manage
+     * their own connections keep it for the life of the physical connection.
+     */
+    protected StatementCache getStatementCache(Connection connection)
+    {
+        synchronized (statementCaches)
+        {
+            StatementCache cache = statementCaches.get(connection);
+            if (cache == null)
+            {
+                cache = new StatementCache(connection, statementCacheSize, statementHits, statementMisses);
+                statementCaches.put(connection, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @return the share of prepared statements served from the statement
+     *         caches, between 0 and 1
+     */
+    public double getStatementCacheHitRate()
+    {
+        long hits = statementHits.get();
+        long total = hits + statementMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Releases the connections and threads held by this provider. Called when
+     * the wiki shuts down; the provider is not used afterwards.
+     */
+    public void close()
+    {
+    }
+
     public void releaseConnection(Connection connection)
     {
         try
         {
             if (connection != null)
             {
+                StatementCache cache = statementCaches.remove(connection);
+                if (cache != null)
+                {
+                    cache.close();
+                }
                 connection.close();
                 connection = null;
             }
@@ -0,0 +1,301 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compresses page texts and attachment data on their way into the database
+ * and expands them on the way out. Every stored value carries its own codec
+ * marker, so compressed and uncompressed rows can be mixed freely and rows
+ * written before compression was enabled stay readable.
+ * <ul>
+ * <li>Page texts are stored as the text marker followed by the gzipped UTF-8
+ * text in Base64, since CONTENT is a character column.</li>
+ * <li>Attachment data is stored as the binary marker followed by the gzipped
+ * data.</li>
+ * </ul>
+ * A value is only stored compressed when that makes it smaller, or when its
+ * plain form happens to start with a marker.
+ */
+public class ContentCodec
+{
+
+    protected static final Logger log = Logger.getLogger(ContentCodec.class);
+
+    /** Starts a compressed page text; DEL does not start real wiki text. */
+    public static final String TEXT_MARKER = "\u007Fgz64:";
+
+    private static final byte[] BINARY_MARKER = { 0x7F, 'J', 'D', 'B', 'C', 'g', 'z', '1' };
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+        .toCharArray();
+
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static
+    {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64.length; i++)
+        {
+            BASE64_VALUES[BASE64[i]] = i;
+        }
+    }
+
+    private final int minLength;
+
+    /**
+     * @param minLength
+     *            values shorter than this (in characters or bytes) are
+     *            stored as they are
+     */
+    public ContentCodec(int minLength)
+    {
+        this.minLength = minLength;
+    }
+
+    /**
+     * @return the page text in the form to be stored
+     */
+    public String encodeText(String text)
+    {
+        if (text == null)
+        {
+            return null;
+        }
+        boolean marked = text.startsWith(TEXT_MARKER);
+        if (text.length() < minLength && !marked)
+        {
+            return text;
+        }
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() / 2);
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(text.getBytes("UTF-8"));
+            gzip.close();
+            String encoded = TEXT_MARKER + toBase64(bytes.toByteArray());
+            return (encoded.length() < text.length() || marked) ? encoded : text;
+        }
+        catch (IOException e)
+        {
+            // cannot happen in memory
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the page text from its stored form; a text that only looks
+     *         compressed is returned as it is
+     */
+    public static String decodeText(String stored)
+    {
+        if (stored == null || !stored.startsWith(TEXT_MARKER))
+        {
+            return stored;
+        }
+        try
+        {
+            byte[] compressed = fromBase64(stored, TEXT_MARKER.length());
+            GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(compressed));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.length * 4);
+            copy(gzip, bytes);
+            return new String(bytes.toByteArray(), "UTF-8");
+        }
+        catch (IOException e)
+        {
+            log.warn("Unable to expand page text, returning it as stored", e);
+            return stored;
+        }
+    }
+
+    /**
+     * Compresses spooled attachment data.
+     *
+     * @return a new spool holding the form to be stored, or null if the data
+     *         should be stored as it is; the caller closes the new spool
+     */
+    public SpooledUpload encodeData(SpooledUpload upload, int threshold, File directory) throws IOException
+    {
+        boolean marked = startsWithMarker(upload);
+        if (upload.getLength() < minLength && !marked)
+        {
+            return null;
+        }
+        SpooledUpload encoded = new SpooledUpload(threshold, directory);
+        try
+        {
+            OutputStream out = encoded.getOutputStream();
+            out.write(BINARY_MARKER);
+            GZIPOutputStream gzip = new GZIPOutputStream(out, 8192);
+            InputStream in = upload.getInputStream();
+            try
+            {
+                copy(in, gzip);
+            }
+            finally
+            {
+                in.close();
+            }
+            gzip.close();
+        }
+        catch (IOException e)
+        {
+            encoded.close();
+            throw e;
+        }
+        if (encoded.getLength() < upload.getLength() || marked)
+        {
+            return encoded;
+        }
+        encoded.close();
+        return null;
+    }
+
+    /**
+     * @return a stream of the attachment data from its stored form
+     */
+    public static InputStream decodeData(InputStream stored) throws IOException
+    {
+        PushbackInputStream in = new PushbackInputStream(stored, BINARY_MARKER.length);
+        byte[] head = new byte[BINARY_MARKER.length];
+        int n = 0;
+        while (n < head.length)
+        {
+            int read = in.read(head, n, head.length - n);
+            if (read == -1)
+            {
+                break;
+            }
+            n += read;
+        }
+        if (n == head.length && Arrays.equals(head, BINARY_MARKER))
+        {
+            return new GZIPInputStream(in, 8192);
+        }
+        in.unread(head, 0, n);
+        return in;
+    }
+
+    private static boolean startsWithMarker(SpooledUpload upload) throws IOException
+    {
+        InputStream in = upload.getInputStream();
+        try
+        {
+            for (int i = 0; i < BINARY_MARKER.length; i++)
+            {
+                if (in.read() != (BINARY_MARKER[i] & 0xff))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static String toBase64(byte[] data)
+    {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3)
+        {
+            int b = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length)
+            {
+                b |= (data[i + 1] & 0xff) << 8;
+            }
+            if (i + 2 < data.length)
+            {
+                b |= data[i + 2] & 0xff;
+            }
+            out.append(BASE64[(b >> 18) & 0x3f]);
+            out.append(BASE64[(b >> 12) & 0x3f]);
+            out.append(i + 1 < data.length ? BASE64[(b >> 6) & 0x3f] : '=');
+            out.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+
+    private static byte[] fromBase64(String text, int offset) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((text.length() - offset) * 3 / 4);
+        int bits = 0;
+        int value = 0;
+        for (int i = offset; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if (c == '=')
+            {
+                break;
+            }
+            int v = c < 128 ? BASE64_VALUES[c] : -1;
+            if (v < 0)
+            {
+                if (Character.isWhitespace(c))
+                {
+                    continue;
+                }
+                throw new IOException("Invalid compressed page text");
+            }
+            value = ((value << 6) | v) & 0xffffff;
+            bits += 6;
+            if (bits >= 8)
+            {
+                bits -= 8;
+                out.write((value >> bits) & 0xff);
+            }
+        }
+        return out.toByteArray();
+    }
+
+}
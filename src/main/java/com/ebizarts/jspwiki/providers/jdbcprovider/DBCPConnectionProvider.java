@@ -36,6 +36,7 @@ import java.util.Properties;
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.commons.dbcp2.BasicDataSourceFactory;
 import org.apache.wiki.WikiEngine;
 import org.apache.wiki.api.exceptions.NoRequiredPropertyException;
@@ -98,6 +99,18 @@ public class DBCPConnectionProvider extends ConnectionProvider
         return ds.getConnection();
     }
 
+    public void close()
+    {
+        try
+        {
+            ((BasicDataSource) ds).close();
+        }
+        catch (SQLException ex)
+        {
+            log.error("Failed to close connection pool", ex);
+        }
+    }
+
     private String stringifyProps(Properties props, String separator)
     {
         String s;
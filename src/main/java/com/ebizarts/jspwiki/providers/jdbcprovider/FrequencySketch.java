@@ -0,0 +1,124 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+/**
+ * A count-min sketch estimating how often a key has been requested recently.
+ * Counters saturate at 15 and are halved once the number of recorded requests
+ * reaches ten times the table width, so old popularity fades away (the
+ * "TinyLFU" scheme). Not thread safe; callers synchronize.
+ */
+class FrequencySketch
+{
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = { 0x97cb3127, 0xb8c3d1a5, 0x7ed55d16, 0x165667b1 };
+
+    private final int[] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param expectedEntries
+     *            roughly how many distinct keys the owning cache can hold
+     */
+    FrequencySketch(int expectedEntries)
+    {
+        int width = 64;
+        while (width < expectedEntries && width < (1 << 22))
+        {
+            width <<= 1;
+        }
+        table = new int[width * DEPTH];
+        mask = width - 1;
+        sampleSize = width * 10;
+    }
+
+    void increment(Object key)
+    {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++)
+        {
+            int index = indexOf(hash, i);
+            if (table[index] < MAX_COUNT)
+            {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+        {
+            reset();
+        }
+    }
+
+    int frequency(Object key)
+    {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+        {
+            frequency = Math.min(frequency, table[indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    private void reset()
+    {
+        for (int i = 0; i < table.length; i++)
+        {
+            table[i] >>>= 1;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int row)
+    {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * (mask + 1) + (h & mask);
+    }
+
+    private static int spread(int h)
+    {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    }
+
+}
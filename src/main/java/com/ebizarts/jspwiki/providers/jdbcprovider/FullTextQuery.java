@@ -0,0 +1,143 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.text.MessageFormat;
+
+import org.apache.wiki.search.QueryItem;
+
+/**
+ * Translates a JSPWiki search query into the full-text query syntax of a
+ * database. The syntax is described by MessageFormat templates from the
+ * flavour properties:
+ * <ul>
+ * <li>required, forbidden, requested: how a single term is written, {0} is
+ * the term</li>
+ * <li>and, or: how two expressions are combined, {0} and {1} are the
+ * expressions</li>
+ * <li>optional: how optional requested terms are added to an expression of
+ * required terms; if null, requested terms are only used when there are no
+ * required terms</li>
+ * </ul>
+ * Terms are split and reduced to letters and digits the same way as for the
+ * search index, so no query operators can leak in from the user's words.
+ */
+public class FullTextQuery
+{
+
+    private final String required;
+
+    private final String forbidden;
+
+    private final String requested;
+
+    private final String and;
+
+    private final String or;
+
+    private final String optional;
+
+    public FullTextQuery(String required, String forbidden, String requested, String and, String or, String optional)
+    {
+        this.required = required;
+        this.forbidden = forbidden;
+        this.requested = requested;
+        this.and = and;
+        this.or = or;
+        this.optional = optional;
+    }
+
+    /**
+     * @return the full-text query, or null if the query has no required or
+     *         requested terms
+     */
+    public String build(QueryItem[] query)
+    {
+        String mandatory = null;
+        String wanted = null;
+        String excluded = null;
+        for (int i = 0; i < query.length; i++)
+        {
+            for (String term : SearchTerms.split(query[i].word))
+            {
+                if (query[i].type == QueryItem.REQUIRED)
+                {
+                    mandatory = combine(and, mandatory, format(required, term));
+                }
+                else if (query[i].type == QueryItem.FORBIDDEN)
+                {
+                    excluded = combine(and, excluded, format(forbidden, term));
+                }
+                else
+                {
+                    wanted = combine(or, wanted, format(requested, term));
+                }
+            }
+        }
+
+        String expression;
+        if (mandatory == null)
+        {
+            expression = wanted;
+        }
+        else if (wanted != null && optional != null)
+        {
+            expression = format(optional, mandatory, wanted);
+        }
+        else
+        {
+            expression = mandatory;
+        }
+        if (expression == null)
+        {
+            return null;
+        }
+        // positive terms first, some databases do not accept a leading NOT
+        return combine(and, expression, excluded);
+    }
+
+    private static String combine(String template, String left, String right)
+    {
+        if (left == null)
+        {
+            return right;
+        }
+        if (right == null)
+        {
+            return left;
+        }
+        return format(template, left, right);
+    }
+
+    private static String format(String template, Object... args)
+    {
+        return MessageFormat.format(template, args);
+    }
+
+}
@@ -21,7 +21,6 @@
 package com.ebizarts.jspwiki.providers.jdbcprovider;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,14 +28,22 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.wiki.WikiEngine;
@@ -49,7 +56,6 @@ import org.apache.wiki.attachment.AttachmentManager;
 import org.apache.wiki.providers.WikiAttachmentProvider;
 import org.apache.wiki.search.QueryItem;
 import org.apache.wiki.util.ClassUtil;
-import org.apache.wiki.util.FileUtil;
 
 /*
  * History:
@@ -91,223 +97,1283 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
 
     protected static final Logger log = Logger.getLogger(JDBCAttachmentProvider.class);
 
+    /** The digest identifying attachment content in WIKI_ATT_BLOB. */
+    private static final String BLOB_DIGEST = "SHA-256";
+
+    private AttachmentDiskCache m_diskCache;
+
+    private ContentCodec m_codec;
+
+    /** The latest versions of the attachments of a page, by page name. */
+    private ProviderCache<String, List<Attachment>> m_listCache = new ProviderCache<String, List<Attachment>>(0);
+
+    /** Raised before every change, so lists read before it are not cached. */
+    private final AtomicLong m_listGeneration = new AtomicLong();
+
     public String getProviderInfo()
     {
         return "JDBC attachment provider";
     }
 
-    public void initialize(WikiEngine engine, Properties properties) throws NoRequiredPropertyException, IOException
+    public void initialize(WikiEngine engine, Properties properties) throws NoRequiredPropertyException, IOException
+    {
+        debug("Initializing JDBCAttachmentProvider");
+        super.initialize(engine, properties);
+        m_WikiEngine = engine;
+        m_listCache = new ProviderCache<String, List<Attachment>>(getConfig().getAttachmentListCacheSize());
+        if (getConfig().getAttachmentCacheDirectory() != null)
+        {
+            m_diskCache = new AttachmentDiskCache(getConfig().getAttachmentCacheDirectory(),
+                                                  getConfig().getAttachmentCacheSize());
+        }
+        if (getConfig().isAttachmentCompressionEnabled())
+        {
+            m_codec = new ContentCodec(getConfig().getCompressionMinBytes());
+        }
+        int count = getAttachmentCount();
+        log.debug("Attachment count at startup: " + count);
+        if (getConfig().isSearchIndexEnabled() && count > 0 && getTermCount() == 0)
+        {
+            rebuildSearchIndex();
+        }
+        if (getConfig().isAttachmentDedupEnabled())
+        {
+            migrateToBlobStorage();
+        }
+        if (getConfig().hasDesireToMigrate())
+        {
+            if (count == 0)
+            {
+                migrateAttachments(engine);
+            }
+            else
+            {
+                info("Attachment migration not possible, because the table is not empty.");
+                info("   - either truncate table WIKI_ATT or");
+                info("   - remove migration flag");
+            }
+        }
+
+    }
+
+    public int getAttachmentCount()
+    {
+        int count = 0;
+        Connection connection = null;
+        Statement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            connection = getConnection();
+            String sql = getSQL("getCount");
+            // SELECT COUNT(*) FROM WIKI_ATT
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(sql);
+            rs.next();
+            count = rs.getInt(1);
+        }
+        catch (SQLException se)
+        {
+            error("unable to get attachment count ", se);
+        }
+        finally
+        {
+            releaseConnection(rs, stmt, connection);
+        }
+        return count;
+
+    }
+
+    // apparently version number and size should not be relied upon at this
+    // point, so the upload is spooled to learn its length before it is
+    // streamed into the database
+    public void putAttachmentData(Attachment att, InputStream dataStream) throws ProviderException, IOException
+    {
+        SpooledUpload upload = new SpooledUpload(dataStream, getConfig().getUploadSpoolThreshold(),
+                                                 getConfig().getUploadSpoolDirectory(),
+                                                 getConfig().isAttachmentDedupEnabled() ? BLOB_DIGEST : null);
+        try
+        {
+            putAttachmentData(att, upload);
+        }
+        finally
+        {
+            upload.close();
+        }
+    }
+
+    private void putAttachmentData(Attachment att, SpooledUpload upload) throws ProviderException, IOException
+    {
+        if (upload.getLength() > Integer.MAX_VALUE)
+        {
+            throw new ProviderException("Attachment too large: " + att + " (" + upload.getLength() + " bytes)");
+        }
+        int length = (int) upload.getLength();
+        String hash = upload.getHash();
+        int version = findLatestVersion(att.getParentName(), att.getFileName()) + 1;
+
+        // att.setVersion(version);
+        SpooledUpload stored = encode(att.getFileName(), upload);
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        InputStream data = null;
+        boolean autoCommit = true;
+        uncacheList(att.getParentName());
+        try
+        {
+            connection = getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            if (hash != null)
+            {
+                storeBlob(connection, hash, stored, length);
+            }
+            String sql = getSQL(hash == null ? "insert" : "insertRef");
+            // INSERT INTO WIKI_ATT
+            // (ATT_PAGENAME, ATT_FILENAME, ATT_VERSION, ATT_MODIFIED,
+            // ATT_MODIFIED_BY, ATT_REVNOTE, ATT_DATA or DATA_HASH, ATT_LENGTH)
+            // VALUES (?, ?, ?, ?, ?, ?,?,?)
+
+            pstmt = prepareStatement(connection, hash == null ? "insert" : "insertRef", sql);
+            pstmt.setString(1, att.getParentName());
+            pstmt.setString(2, att.getFileName());
+            if (m_migrating)
+            {
+                pstmt.setInt(3, att.getVersion());
+            }
+            else
+            {
+                pstmt.setInt(3, version);
+            }
+
+            Timestamp d;
+            if (m_migrating && att.getLastModified() != null)
+            {
+                d = new Timestamp(att.getLastModified().getTime());
+            }
+            else
+            {
+                d = new Timestamp(System.currentTimeMillis());
+            }
+
+            pstmt.setTimestamp(4, d);
+            pstmt.setString(5, att.getAuthor());
+            pstmt.setString(6, (String) att.getAttribute(WikiPage.CHANGENOTE));
+            if (hash == null)
+            {
+                data = stored.getInputStream();
+                pstmt.setBinaryStream(7, data, (int) stored.getLength());
+            }
+            else
+            {
+                pstmt.setString(7, hash);
+            }
+            pstmt.setInt(8, length);
+            pstmt.execute();
+            if (getConfig().isSearchIndexEnabled())
+            {
+                indexAttachmentTerms(connection, att.getParentName(), att.getFileName(),
+                                     (String) att.getAttribute(WikiPage.CHANGENOTE));
+            }
+            connection.commit();
+        }
+        catch (SQLException se)
+        {
+            rollback(connection);
+            error("Saving attachment failed " + att, se);
+        }
+        finally
+        {
+            restoreAutoCommit(connection, autoCommit);
+            releaseConnection(pstmt, connection);
+            if (data != null)
+            {
+                data.close();
+            }
+            if (stored != upload)
+            {
+                stored.close();
+            }
+            uncacheList(att.getParentName());
+        }
+        if (m_diskCache != null)
+        {
+            // a version number can be used again after it has been deleted
+            m_diskCache.invalidate(att.getParentName(), att.getFileName(), version);
+        }
+    }
+
+    /**
+     * @return the spool holding the form of the data to store; the upload
+     *         itself unless it is compressed
+     */
+    private SpooledUpload encode(String fileName, SpooledUpload upload) throws IOException
+    {
+        if (m_codec == null || !isCompressible(fileName))
+        {
+            return upload;
+        }
+        SpooledUpload encoded = m_codec.encodeData(upload, getConfig().getUploadSpoolThreshold(),
+                                                   getConfig().getUploadSpoolDirectory());
+        return encoded == null ? upload : encoded;
+    }
+
+    /**
+     * @return false for file types that are compressed already, going by
+     *         the file name extension
+     */
+    private boolean isCompressible(String fileName)
+    {
+        int dot = fileName.lastIndexOf('.');
+        String extension = dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return !getConfig().getCompressionSkipExtensions().contains(extension);
+    }
+
+    /**
+     * Adds a reference to the stored content with the given hash. The data
+     * is only inserted if the content is not stored yet. Must be called
+     * inside a transaction.
+     * <p>
+     * Two uploads of the same new content may both find nothing to reference
+     * and both insert it. The one that loses on the primary key rolls back
+     * to before its insert and references the content the other one stored.
+     *
+     * @param stored
+     *            the data in the form to store
+     * @param length
+     *            the length of the attachment
+     */
+    private void storeBlob(Connection connection, String hash, SpooledUpload stored, int length)
+        throws SQLException, IOException
+    {
+        if (addBlobRef(connection, hash))
+        {
+            debug("Attachment content already stored: " + hash);
+            return;
+        }
+        PreparedStatement pstmt = null;
+        InputStream data = null;
+        // a failed statement aborts the whole transaction on some databases
+        Savepoint savepoint = connection.setSavepoint();
+        try
+        {
+            String sql = getSQL("blob.insert");
+            // INSERT INTO WIKI_ATT_BLOB (DATA_HASH, DATA, LENGTH, REFCOUNT)
+            // VALUES (?, ?, ?, 1)
+            pstmt = prepareStatement(connection, "blob.insert", sql);
+            pstmt.setString(1, hash);
+            data = stored.getInputStream();
+            pstmt.setBinaryStream(2, data, (int) stored.getLength());
+            pstmt.setInt(3, length);
+            pstmt.execute();
+        }
+        catch (SQLException se)
+        {
+            if (!isDuplicateKey(se))
+            {
+                throw se;
+            }
+            connection.rollback(savepoint);
+            if (!addBlobRef(connection, hash))
+            {
+                throw se;
+            }
+            debug("Attachment content stored concurrently: " + hash);
+        }
+        finally
+        {
+            closeStatement(null, pstmt);
+            if (data != null)
+            {
+                data.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the content with the given hash is stored and now has
+     *         one more reference
+     */
+    private boolean addBlobRef(Connection connection, String hash) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getSQL("blob.addRef");
+            // UPDATE WIKI_ATT_BLOB SET REFCOUNT = REFCOUNT + 1 WHERE DATA_HASH = ?
+            pstmt = prepareStatement(connection, "blob.addRef", sql);
+            pstmt.setString(1, hash);
+            return pstmt.executeUpdate() > 0;
+        }
+        finally
+        {
+            closeStatement(null, pstmt);
+        }
+    }
+
+    /**
+     * Drops one reference to each of the stored contents, and deletes the
+     * contents no longer referenced.
+     */
+    private void releaseBlobs(Connection connection, List<String> hashes) throws SQLException
+    {
+        PreparedStatement release = null;
+        PreparedStatement collect = null;
+        try
+        {
+            String sql = getSQL("blob.release");
+            // UPDATE WIKI_ATT_BLOB SET REFCOUNT = REFCOUNT - 1 WHERE DATA_HASH = ?
+            release = prepareStatement(connection, "blob.release", sql);
+            sql = getSQL("blob.collect");
+            // DELETE FROM WIKI_ATT_BLOB WHERE DATA_HASH = ? AND REFCOUNT <= 0
+            collect = prepareStatement(connection, "blob.collect", sql);
+            for (String hash : hashes)
+            {
+                release.setString(1, hash);
+                release.execute();
+                collect.setString(1, hash);
+                collect.execute();
+            }
+        }
+        finally
+        {
+            closeStatement(null, release);
+            closeStatement(null, collect);
+        }
+    }
+
+    /**
+     * @return the content hashes referenced by one or all versions of an
+     *         attachment
+     */
+    private List<String> readHashes(Connection connection, Attachment att, boolean allVersions) throws SQLException
+    {
+        List<String> hashes = new ArrayList<String>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            String sql = getSQL(allVersions ? "getHashes" : "getHash");
+            // SELECT DATA_HASH FROM WIKI_ATT WHERE PAGENAME = ? AND FILENAME = ?
+            // [AND VERSION = ?]
+            pstmt = prepareStatement(connection, allVersions ? "getHashes" : "getHash", sql);
+            pstmt.setString(1, att.getParentName());
+            pstmt.setString(2, att.getFileName());
+            if (!allVersions)
+            {
+                pstmt.setInt(3, att.getVersion());
+            }
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                if (rs.getString(1) != null)
+                {
+                    hashes.add(rs.getString(1));
+                }
+            }
+        }
+        finally
+        {
+            closeStatement(rs, pstmt);
+        }
+        return hashes;
+    }
+
+    /**
+     * Moves the data of attachment versions stored in WIKI_ATT into
+     * WIKI_ATT_BLOB, one version per transaction. Done automatically at
+     * startup when attachment.storage = dedup; a no-op once all versions
+     * have been moved.
+     */
+    public void migrateToBlobStorage()
+    {
+        List<Attachment> pending = new ArrayList<Attachment>();
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            connection = getConnection();
+            String sql = getSQL("getInline");
+            // SELECT PAGENAME, FILENAME, VERSION FROM WIKI_ATT
+            // WHERE DATA_HASH IS NULL AND DATA IS NOT NULL
+            pstmt = prepareStatement(connection, "getInline", sql);
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                Attachment att = new Attachment(getEngine(), rs.getString(1), rs.getString(2));
+                att.setVersion(rs.getInt(3));
+                pending.add(att);
+            }
+        }
+        catch (SQLException se)
+        {
+            error("Unable to list attachments for blob storage", se);
+            return;
+        }
+        finally
+        {
+            releaseConnection(rs, pstmt, connection);
+        }
+        if (pending.isEmpty())
+        {
+            return;
+        }
+
+        info("Moving " + pending.size() + " attachment versions to blob storage");
+        int moved = 0;
+        for (Attachment att : pending)
+        {
+            if (moveToBlobStorage(att))
+            {
+                moved++;
+            }
+        }
+        info("Moved " + moved + " attachment versions to blob storage");
+    }
+
+    private boolean moveToBlobStorage(Attachment att)
+    {
+        SpooledUpload upload = null;
+        InputStream data = null;
+        try
+        {
+            data = getAttachmentData(att);
+            if (data == null)
+            {
+                return false;
+            }
+            upload = new SpooledUpload(data, getConfig().getUploadSpoolThreshold(),
+                                       getConfig().getUploadSpoolDirectory(), BLOB_DIGEST);
+        }
+        catch (ProviderException pe)
+        {
+            error("Unable to read attachment " + att, pe);
+            return false;
+        }
+        catch (IOException ioe)
+        {
+            error("Unable to read attachment " + att, ioe);
+            return false;
+        }
+        finally
+        {
+            closeQuietly(data);
+        }
+
+        SpooledUpload stored = upload;
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        boolean autoCommit = true;
+        try
+        {
+            stored = encode(att.getFileName(), upload);
+            connection = getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            storeBlob(connection, upload.getHash(), stored, (int) upload.getLength());
+            String sql = getSQL("setHash");
+            // UPDATE WIKI_ATT SET DATA_HASH = ?, DATA = NULL WHERE PAGENAME = ?
+            // AND FILENAME = ? AND VERSION = ? AND DATA_HASH IS NULL
+            pstmt = prepareStatement(connection, "setHash", sql);
+            pstmt.setString(1, upload.getHash());
+            pstmt.setString(2, att.getParentName());
+            pstmt.setString(3, att.getFileName());
+            pstmt.setInt(4, att.getVersion());
+            if (pstmt.executeUpdate() == 0)
+            {
+                // changed since it was listed
+                connection.rollback();
+                return false;
+            }
+            connection.commit();
+            return true;
+        }
+        catch (SQLException se)
+        {
+            rollback(connection);
+            error("Unable to move attachment " + att + " to blob storage", se);
+            return false;
+        }
+        catch (IOException ioe)
+        {
+            rollback(connection);
+            error("Unable to move attachment " + att + " to blob storage", ioe);
+            return false;
+        }
+        finally
+        {
+            restoreAutoCommit(connection, autoCommit);
+            releaseConnection(pstmt, connection);
+            if (stored != upload)
+            {
+                stored.close();
+            }
+            upload.close();
+        }
+    }
+
+    private static void closeQuietly(InputStream in)
+    {
+        try
+        {
+            if (in != null)
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            // Ignore, since nothing can be done
+        }
+    }
+
+    /**
+     * Streams the data of an attachment version. The returned stream holds
+     * on to its connection until it is closed or read to the end.
+     */
+    public InputStream getAttachmentData(Attachment att) throws ProviderException, IOException
+    {
+
+        int version = att.getVersion();
+        if (version == WikiProvider.LATEST_VERSION)
+            version = findLatestVersion(att.getParentName(), att.getFileName());
+
+        String stamp = null;
+        if (m_diskCache != null && !m_migrating)
+        {
+            // the version may have been deleted and uploaded again elsewhere
+            Attachment info = getAttachmentInfo(new WikiPage(getEngine(), att.getParentName()), att.getFileName(),
+                                                version);
+            if (info != null)
+            {
+                stamp = AttachmentDiskCache.stamp(info.getLastModified(), info.getSize());
+                InputStream cached = m_diskCache.open(att.getParentName(), att.getFileName(), version, stamp);
+                if (cached != null)
+                {
+                    return cached;
+                }
+            }
+        }
+
+        InputStream result = null;
+        boolean streaming = false;
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            connection = getConnection();
+            String key = getConfig().isAttachmentDedupEnabled() ? "getBlobData" : "getData";
+            String sql = getSQL(key);
+            // SELECT ATT_DATA [, WIKI_ATT_BLOB.DATA] FROM WIKI_ATT WHERE
+            // ATT_PAGENAME = ? AND ATT_FILENAME = ? AND ATT_VERSION = ?
+
+            pstmt = prepareStatement(connection, key, sql, ResultSet.TYPE_FORWARD_ONLY,
+                                     ResultSet.CONCUR_READ_ONLY);
+            if (getConfig().getAttachmentFetchSize() != 0)
+            {
+                pstmt.setFetchSize(getConfig().getAttachmentFetchSize());
+            }
+            pstmt.setString(1, att.getParentName());
+            pstmt.setString(2, att.getFileName());
+            pstmt.setInt(3, version);
+            rs = pstmt.executeQuery();
+
+            if (rs.next())
+            {
+                InputStream data = rs.getBinaryStream(1);
+                if (data == null && getConfig().isAttachmentDedupEnabled())
+                {
+                    data = rs.getBinaryStream(2);
+                }
+                if (data == null)
+                {
+                    result = new ByteArrayInputStream(new byte[0]);
+                }
+                else
+                {
+                    ResultSetInputStream stream = new ResultSetInputStream(this, rs, pstmt, connection, data,
+                                                                           att + ":" + version);
+                    streaming = true; // the stream releases the connection now
+                    try
+                    {
+                        result = ContentCodec.decodeData(stream);
+                    }
+                    catch (IOException e)
+                    {
+                        stream.close();
+                        throw e;
+                    }
+                    if (stamp != null)
+                    {
+                        result = m_diskCache.populate(att.getParentName(), att.getFileName(), version, stamp,
+                                                      result);
+                    }
+                }
+            }
+            else
+            {
+                error("No attachments to read; '" + att + "'", new SQLException("empty attachment set"));
+            }
+
+        }
+        catch (SQLException se)
+        {
+            error("Unable to read attachment '" + att + "'", se);
+        }
+        finally
+        {
+            if (!streaming)
+            {
+                releaseConnection(rs, pstmt, connection);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lists the latest version of every attachment of a page. The lists are
+     * cached per page until an attachment of the page changes.
+     */
+    public Collection<Attachment> listAttachments(WikiPage page) throws ProviderException
+    {
+        List<Attachment> cached = m_listCache.get(page.getName());
+        if (cached != null)
+        {
+            return copyAttachments(cached);
+        }
+
+        long generation = m_listGeneration.get();
+        List<Attachment> result = new ArrayList<Attachment>();
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            connection = getConnection();
+            String sql = getSQL("getList");
+            // SELECT LENGTH, FILENAME, CHANGE_TIME, CHANGE_BY, CHANGE_NOTE,
+            // VERSION FROM WIKI_ATT A1 WHERE PAGENAME = ? AND VERSION =
+            // (SELECT MAX(VERSION) ...) ORDER BY FILENAME
+
+            pstmt = prepareStatement(connection, "getList", sql);
+            pstmt.setString(1, page.getName());
+            rs = pstmt.executeQuery();
+
+            String previousFileName = "";
+            while (rs.next())
+            {
+                String fileName = rs.getString(2);
+                if (fileName.equals(previousFileName))
+                    continue; // older flavour files list every version
+                result.add(readListEntry(rs, page.getName()));
+                previousFileName = fileName;
+            }
+
+        }
+        catch (SQLException se)
+        {
+            error("Unable to list attachments", se);
+            return result;
+        }
+        finally
+        {
+            releaseConnection(rs, pstmt, connection);
+        }
+        cacheList(page.getName(), result, generation);
+        return result;
+    }
+
+    /**
+     * Lists the latest version of every attachment of many pages at once.
+     * The pages whose list is not cached are read with one query per
+     * attachment.listBatchSize pages, instead of one query per page.
+     *
+     * @return the attachments by page name, in the order of the given pages;
+     *         pages without attachments have an empty list
+     */
+    public Map<String, List<Attachment>> listAttachments(Collection<WikiPage> pages)
+    {
+        Map<String, List<Attachment>> result = new LinkedHashMap<String, List<Attachment>>();
+        List<String> missing = new ArrayList<String>();
+        for (WikiPage page : pages)
+        {
+            if (result.containsKey(page.getName()))
+            {
+                continue;
+            }
+            List<Attachment> cached = m_listCache.get(page.getName());
+            if (cached != null)
+            {
+                result.put(page.getName(), copyAttachments(cached));
+            }
+            else
+            {
+                result.put(page.getName(), new ArrayList<Attachment>());
+                missing.add(page.getName());
+            }
+        }
+        if (missing.isEmpty())
+        {
+            return result;
+        }
+
+        long generation = m_listGeneration.get();
+        int batchSize = Math.min(getConfig().getAttachmentListBatchSize(), missing.size());
+        Connection connection = null;
+        try
+        {
+            connection = getConnection();
+            for (int from = 0; from < missing.size(); from += batchSize)
+            {
+                readLists(connection, missing.subList(from, Math.min(from + batchSize, missing.size())), batchSize,
+                          result);
+            }
+        }
+        catch (SQLException se)
+        {
+            error("Unable to list attachments", se);
+            return result;
+        }
+        finally
+        {
+            releaseConnection(connection);
+        }
+        synchronized (m_listGeneration)
+        {
+            for (String pageName : missing)
+            {
+                cacheList(pageName, result.get(pageName), generation);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the attachment lists of a chunk of pages into the given map. The
+     * IN list always has batchSize entries, padded with the last page name,
+     * so every chunk runs the same statement.
+     */
+    private void readLists(Connection connection, List<String> pageNames, int batchSize,
+                           Map<String, List<Attachment>> result) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            StringBuilder parameters = new StringBuilder();
+            for (int i = 0; i < batchSize; i++)
+            {
+                parameters.append(i == 0 ? "?" : ", ?");
+            }
+            String sql = getSQL("getListIn").replace("{0}", parameters);
+            // SELECT LENGTH, FILENAME, CHANGE_TIME, CHANGE_BY, CHANGE_NOTE,
+            // VERSION, PAGENAME FROM WIKI_ATT A1 WHERE PAGENAME IN ({0}) AND
+            // VERSION = (SELECT MAX(VERSION) ...) ORDER BY PAGENAME, FILENAME
+            pstmt = prepareStatement(connection, "getListIn", sql);
+            for (int i = 0; i < batchSize; i++)
+            {
+                pstmt.setString(i + 1, pageNames.get(Math.min(i, pageNames.size() - 1)));
+            }
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                List<Attachment> list = result.get(rs.getString(7));
+                if (list != null)
+                {
+                    list.add(readListEntry(rs, rs.getString(7)));
+                }
+            }
+        }
+        finally
+        {
+            closeStatement(rs, pstmt);
+        }
+    }
+
+    /**
+     * Reads the LENGTH, FILENAME, CHANGE_TIME, CHANGE_BY, CHANGE_NOTE and
+     * VERSION columns of an attachment list query.
+     */
+    private Attachment readListEntry(ResultSet rs, String pageName) throws SQLException
+    {
+        Attachment att = new Attachment(getEngine(), pageName, rs.getString(2));
+        att.setSize(rs.getInt(1));
+        // use Java Date for friendlier comparisons with other dates
+        att.setLastModified(new java.util.Date(rs.getTimestamp(3).getTime()));
+        att.setAuthor(rs.getString(4));
+        if (rs.getString(5) != null)
+            att.setAttribute(WikiPage.CHANGENOTE, rs.getString(5));
+        att.setVersion(rs.getInt(6));
+        return att;
+    }
+
+    /**
+     * @return copies of the attachments, so callers cannot change cached ones
+     */
+    private List<Attachment> copyAttachments(List<Attachment> attachments)
+    {
+        List<Attachment> copies = new ArrayList<Attachment>(attachments.size());
+        for (Attachment att : attachments)
+        {
+            Attachment copy = new Attachment(getEngine(), att.getParentName(), att.getFileName());
+            copy.setSize(att.getSize());
+            copy.setLastModified(att.getLastModified());
+            copy.setAuthor(att.getAuthor());
+            if (att.getAttribute(WikiPage.CHANGENOTE) != null)
+                copy.setAttribute(WikiPage.CHANGENOTE, att.getAttribute(WikiPage.CHANGENOTE));
+            copy.setVersion(att.getVersion());
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Caches the attachment list read from the database, unless a change has
+     * started since the read did; the read may then have seen the state
+     * before the change.
+     *
+     * @param generation
+     *            the list generation from before the read
+     */
+    private void cacheList(String pageName, List<Attachment> list, long generation)
+    {
+        synchronized (m_listGeneration)
+        {
+            if (m_listGeneration.get() == generation)
+            {
+                m_listCache.put(pageName, copyAttachments(list));
+            }
+        }
+    }
+
+    /**
+     * Drops the cached attachment lists of the given pages. Called before
+     * and after a change, so a list read while the change is in progress is
+     * neither served from nor put into the cache.
+     */
+    private void uncacheList(String... pageNames)
+    {
+        synchronized (m_listGeneration)
+        {
+            m_listGeneration.incrementAndGet();
+            for (String pageName : pageNames)
+            {
+                m_listCache.remove(pageName);
+            }
+        }
+    }
+
+    /**
+     * @return the cache of attachment lists per page
+     */
+    public ProviderCache<String, List<Attachment>> getListCache()
+    {
+        return m_listCache;
+    }
+
+    /**
+     * Matches the query against the file name, the page name and the change
+     * note of the latest version of every attachment. With search.mode =
+     * index the terms are looked up in the WIKI_ATT_TERM table, otherwise the
+     * metadata of all attachments is read and matched in memory. The DATA
+     * column is never read.
+     *
+     * @return the matching attachments, best match first
+     */
+    public Collection<?> findAttachments(QueryItem[] query)
+    {
+        final Map<String, Attachment> found = new HashMap<String, Attachment>();
+        final Map<String, Integer> scores;
+        Connection connection = null;
+        try
+        {
+            connection = getConnection();
+            if (getConfig().isSearchIndexEnabled())
+            {
+                final Connection termConnection = connection;
+                scores = new SearchTerms()
+                {
+                    protected Map<String, Integer> lookup(String term) throws SQLException
+                    {
+                        return findTerm(termConnection, term, found);
+                    }
+                }.resolve(query);
+            }
+            else if (hasSQL("find"))
+            {
+                final Connection findConnection = connection;
+                scores = new SearchTerms()
+                {
+                    protected Map<String, Integer> lookup(String term) throws SQLException
+                    {
+                        return findCandidates(findConnection, term, found);
+                    }
+                }.resolve(query);
+            }
+            else
+            {
+                // flavour files without attachment.find
+                final Map<String, Map<String, Integer>> terms = new HashMap<String, Map<String, Integer>>();
+                for (Attachment att : readLatestInfo(connection))
+                {
+                    found.put(att.getName(), att);
+                    String text = getIndexText(att.getParentName(), att.getFileName(),
+                                               (String) att.getAttribute(WikiPage.CHANGENOTE));
+                    for (Map.Entry<String, Integer> e : SearchTerms.count(text).entrySet())
+                    {
+                        Map<String, Integer> attachments = terms.get(e.getKey());
+                        if (attachments == null)
+                        {
+                            attachments = new HashMap<String, Integer>();
+                            terms.put(e.getKey(), attachments);
+                        }
+                        attachments.put(att.getName(), e.getValue());
+                    }
+                }
+                scores = new SearchTerms()
+                {
+                    protected Map<String, Integer> lookup(String term)
+                    {
+                        Map<String, Integer> attachments = terms.get(term);
+                        return attachments == null ? Collections.<String, Integer> emptyMap() : attachments;
+                    }
+                }.resolve(query);
+            }
+        }
+        catch (SQLException se)
+        {
+            error("Attachment search failed", se);
+            return new ArrayList<Attachment>();
+        }
+        finally
+        {
+            releaseConnection(connection);
+        }
+
+        List<Attachment> result = new ArrayList<Attachment>();
+        for (String name : scores.keySet())
+        {
+            Attachment att = found.get(name);
+            if (att != null && att.getVersion() == 0)
+            {
+                // only the name is known from the index
+                att = getAttachmentInfo(att, LATEST_VERSION);
+            }
+            if (att != null)
+            {
+                result.add(att);
+            }
+        }
+        Collections.sort(result, new Comparator<Attachment>()
+        {
+            public int compare(Attachment a, Attachment b)
+            {
+                int diff = scores.get(b.getName()).intValue() - scores.get(a.getName()).intValue();
+                return diff != 0 ? diff : a.getName().compareTo(b.getName());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Looks a term up without the index. The database narrows the attachments
+     * down to those whose names or change note contain the term, and the
+     * candidates are then split into terms like the index would be, to drop
+     * matches inside longer words.
+     *
+     * @return the attachments containing the term, mapped to the term
+     *         frequency; the attachments are added to the found map
+     */
+    private Map<String, Integer> findCandidates(Connection connection, String term, Map<String, Attachment> found)
+        throws SQLException
     {
-        debug("Initializing JDBCAttachmentProvider");
-        super.initialize(engine, properties);
-        m_WikiEngine = engine;
-        int count = getAttachmentCount();
-        log.debug("Attachment count at startup: " + count);
-        if (getConfig().hasDesireToMigrate())
+        Map<String, Integer> attachments = new HashMap<String, Integer>();
+        // terms are letters and digits only, nothing to escape
+        for (Attachment att : readLatestInfo(connection, "find", "%" + term + "%"))
         {
-            if (count == 0)
-            {
-                migrateAttachments(engine);
-            }
-            else
+            String text = getIndexText(att.getParentName(), att.getFileName(),
+                                       (String) att.getAttribute(WikiPage.CHANGENOTE));
+            Integer freq = SearchTerms.count(text).get(term);
+            if (freq != null)
             {
-                info("Attachment migration not possible, because the table is not empty.");
-                info("   - either truncate table WIKI_ATT or");
-                info("   - remove migration flag");
+                found.put(att.getName(), att);
+                attachments.put(att.getName(), freq);
             }
         }
+        return attachments;
+    }
 
+    /**
+     * Reads the metadata of the latest version of every attachment.
+     */
+    private List<Attachment> readLatestInfo(Connection connection) throws SQLException
+    {
+        return readLatestInfo(connection, "getAllLatest", null);
     }
 
-    public int getAttachmentCount()
+    /**
+     * Reads the metadata of the latest version of attachments.
+     *
+     * @param pattern
+     *            the LIKE pattern for the page name, file name and change
+     *            note, or null if the statement takes no parameters
+     */
+    private List<Attachment> readLatestInfo(Connection connection, String key, String pattern) throws SQLException
     {
-        int count = 0;
-        Connection connection = null;
-        Statement stmt = null;
+        List<Attachment> list = new ArrayList<Attachment>();
+        PreparedStatement pstmt = null;
         ResultSet rs = null;
         try
         {
-            connection = getConnection();
-            String sql = getSQL("getCount");
-            // SELECT COUNT(*) FROM WIKI_ATT
-            stmt = connection.createStatement();
-            rs = stmt.executeQuery(sql);
-            rs.next();
-            count = rs.getInt(1);
+            String sql = getSQL(key);
+            // SELECT PAGENAME, FILENAME, LENGTH, CHANGE_TIME, CHANGE_BY,
+            // CHANGE_NOTE, VERSION FROM WIKI_ATT WHERE <latest version>
+            pstmt = prepareStatement(connection, key, sql);
+            if (pattern != null)
+            {
+                // page name, file name and change note
+                pstmt.setString(1, pattern);
+                pstmt.setString(2, pattern);
+                pstmt.setString(3, pattern);
+            }
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                Attachment att = new Attachment(getEngine(), rs.getString(1), rs.getString(2));
+                att.setSize(rs.getInt(3));
+                // use Java Date for friendlier comparisons with other dates
+                att.setLastModified(new java.util.Date(rs.getTimestamp(4).getTime()));
+                att.setAuthor(rs.getString(5));
+                if (rs.getString(6) != null)
+                    att.setAttribute(WikiPage.CHANGENOTE, rs.getString(6));
+                att.setVersion(rs.getInt(7));
+                list.add(att);
+            }
         }
-        catch (SQLException se)
+        finally
         {
-            error("unable to get attachment count ", se);
+            closeStatement(rs, pstmt);
+        }
+        return list;
+    }
+
+    /**
+     * @return the attachments containing the term, mapped to the term
+     *         frequency; attachments not seen before are added to the found
+     *         map without their info
+     */
+    private Map<String, Integer> findTerm(Connection connection, String term, Map<String, Attachment> found)
+        throws SQLException
+    {
+        Map<String, Integer> attachments = new HashMap<String, Integer>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            String sql = getSQL("term.find");
+            // SELECT PAGENAME, FILENAME, FREQ FROM WIKI_ATT_TERM WHERE TERM = ?
+            pstmt = prepareStatement(connection, "term.find", sql);
+            pstmt.setString(1, term);
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                Attachment att = new Attachment(getEngine(), rs.getString(1), rs.getString(2));
+                if (!found.containsKey(att.getName()))
+                {
+                    att.setVersion(0);
+                    found.put(att.getName(), att);
+                }
+                attachments.put(att.getName(), Integer.valueOf(rs.getInt(3)));
+            }
         }
         finally
         {
-            releaseConnection(rs, stmt, connection);
+            closeStatement(rs, pstmt);
         }
-        return count;
+        return attachments;
+    }
 
+    private Attachment getAttachmentInfo(Attachment att, int version)
+    {
+        try
+        {
+            return getAttachmentInfo(new WikiPage(getEngine(), att.getParentName()), att.getFileName(), version);
+        }
+        catch (ProviderException pe)
+        {
+            error("Unable to get attachment info for " + att, pe);
+            return null;
+        }
     }
 
-    // apparently version number and size should not be relied upon at this
-    // point
-    public void putAttachmentData(Attachment att, InputStream dataStream) throws ProviderException, IOException
+    /**
+     * @return the text whose terms are indexed for an attachment
+     */
+    private static String getIndexText(String pageName, String fileName, String changeNote)
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        FileUtil.copyContents(dataStream, baos);
-        byte data[] = baos.toByteArray();
-        int version = findLatestVersion(att.getParentName(), att.getFileName()) + 1;
+        return fileName + " " + pageName + (changeNote == null ? "" : " " + changeNote);
+    }
 
-        // att.setVersion(version);
-        Connection connection = null;
+    /**
+     * Replaces the indexed terms of an attachment, on the caller's connection
+     * and transaction.
+     *
+     * @param changeNote
+     *            the change note of the latest version
+     */
+    private void indexAttachmentTerms(Connection connection, String pageName, String fileName, String changeNote)
+        throws SQLException
+    {
+        deleteAttachmentTerms(connection, pageName, fileName);
+        Map<String, Integer> counts = SearchTerms.count(getIndexText(pageName, fileName, changeNote));
+        if (counts.isEmpty())
+        {
+            return;
+        }
         PreparedStatement pstmt = null;
         try
         {
-            connection = getConnection();
-            String sql = getSQL("insert");
-            // INSERT INTO WIKI_ATT
-            // (ATT_PAGENAME, ATT_FILENAME, ATT_VERSION, ATT_MODIFIED,
-            // ATT_MODIFIED_BY, ATT_REVNOTE, ATT_DATA, ATT_LENGTH)
-            // VALUES (?, ?, ?, ?, ?, ?,?,?)
-
-            pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, att.getParentName());
-            pstmt.setString(2, att.getFileName());
-            if (m_migrating)
+            String sql = getSQL("term.insert");
+            // INSERT INTO WIKI_ATT_TERM (TERM, PAGENAME, FILENAME, FREQ) VALUES (?, ?, ?, ?)
+            pstmt = prepareStatement(connection, "term.insert", sql);
+            for (Map.Entry<String, Integer> e : counts.entrySet())
             {
-                pstmt.setInt(3, att.getVersion());
-            }
-            else
-            {
-                pstmt.setInt(3, version);
-            }
-
-            Timestamp d;
-            if (m_migrating && att.getLastModified() != null)
-            {
-                d = new Timestamp(att.getLastModified().getTime());
-            }
-            else
-            {
-                d = new Timestamp(System.currentTimeMillis());
+                pstmt.setString(1, e.getKey());
+                pstmt.setString(2, pageName);
+                pstmt.setString(3, fileName);
+                pstmt.setInt(4, e.getValue().intValue());
+                pstmt.addBatch();
             }
-
-            pstmt.setTimestamp(4, d);
-            pstmt.setString(5, att.getAuthor());
-            pstmt.setString(6, (String) att.getAttribute(WikiPage.CHANGENOTE));
-            pstmt.setBytes(7, data);
-            pstmt.setInt(8, data.length);
-            pstmt.execute();
+            pstmt.executeBatch();
         }
-        catch (SQLException se)
+        finally
         {
-            error("Saving attachment failed " + att, se);
+            closeStatement(null, pstmt);
+        }
+    }
+
+    private void deleteAttachmentTerms(Connection connection, String pageName, String fileName) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getSQL("term.delete");
+            // DELETE FROM WIKI_ATT_TERM WHERE PAGENAME = ? AND FILENAME = ?
+            pstmt = prepareStatement(connection, "term.delete", sql);
+            pstmt.setString(1, pageName);
+            pstmt.setString(2, fileName);
+            pstmt.execute();
         }
         finally
         {
-            releaseConnection(pstmt, connection);
+            closeStatement(null, pstmt);
         }
     }
 
-    public InputStream getAttachmentData(Attachment att) throws ProviderException, IOException
+    /**
+     * Re-indexes an attachment from its latest version, or removes it from
+     * the index if no version is left.
+     */
+    private void reindexAttachment(String pageName, String fileName)
     {
-
-        int version = att.getVersion();
-        if (version == WikiProvider.LATEST_VERSION)
-            version = findLatestVersion(att.getParentName(), att.getFileName());
-
-        InputStream result = null;
+        Attachment latest = getAttachmentInfo(new Attachment(getEngine(), pageName, fileName), LATEST_VERSION);
         Connection connection = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
+        boolean autoCommit = true;
         try
         {
             connection = getConnection();
-            String sql = getSQL("getData");
-            // SELECT ATT_DATA FROM WIKI_ATT WHERE ATT_PAGENAME = ? AND
-            // ATT_FILENAME = ? AND ATT_VERSION = ?
-
-            pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, att.getParentName());
-            pstmt.setString(2, att.getFileName());
-            pstmt.setInt(3, version);
-            rs = pstmt.executeQuery();
-
-            if (rs.next())
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            if (latest == null)
             {
-                byte[] bytes = rs.getBytes(1);
-                result = new ByteArrayInputStream(bytes);
+                deleteAttachmentTerms(connection, pageName, fileName);
             }
             else
             {
-                error("No attachments to read; '" + att + "'", new SQLException("empty attachment set"));
+                indexAttachmentTerms(connection, pageName, fileName,
+                                     (String) latest.getAttribute(WikiPage.CHANGENOTE));
             }
-
+            connection.commit();
         }
         catch (SQLException se)
         {
-            error("Unable to read attachment '" + att + "'", se);
+            rollback(connection);
+            error("unable to index attachment " + pageName + "/" + fileName, se);
         }
         finally
         {
-            releaseConnection(rs, pstmt, connection);
+            restoreAutoCommit(connection, autoCommit);
+            releaseConnection(connection);
         }
-        return result;
     }
 
-    // latest versions only
-    public Collection<Attachment> listAttachments(WikiPage page) throws ProviderException
+    /**
+     * Rebuilds the attachment search index from the latest version of every
+     * attachment. Done automatically at startup when the index is enabled but
+     * empty.
+     */
+    public void rebuildSearchIndex()
     {
-
-        Collection<Attachment> result = new ArrayList<Attachment>();
+        info("Building attachment search index");
+        int attachments = 0;
         Connection connection = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
+        boolean autoCommit = true;
         try
         {
             connection = getConnection();
-            String sql = getSQL("getList");
-            // SELECT ATT_LENGTH, ATT_FILENAME, ATT_MODIFIED, ATT_MODIFIED_BY,
-            // ATT_REVNOTE, ATT_VERSION FROM WIKI_ATT WHERE ATT_PAGENAME = ?
-            // ORDER BY ATT_FILENAME, ATT_VERSION DESC;
-
-            pstmt = connection.prepareStatement(sql);
-            pstmt.setString(1, page.getName());
-            rs = pstmt.executeQuery();
-
-            String previousFileName = "";
-            while (rs.next())
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            for (Attachment att : readLatestInfo(connection))
             {
-                int size = rs.getInt(1);
-                String fileName = rs.getString(2);
-                if (fileName.equals(previousFileName))
-                    continue; // only add latest version
-                Attachment att = new Attachment(getEngine(), page.getName(), fileName);
-                att.setSize(size);
-                // use Java Date for friendlier comparisons with other dates
-                att.setLastModified(new java.util.Date(rs.getTimestamp(3).getTime()));
-                att.setAuthor(rs.getString(4));
-                if (rs.getString(5) != null)
-                    att.setAttribute(WikiPage.CHANGENOTE, rs.getString(5));
-                att.setVersion(rs.getInt(6));
-                result.add(att);
-                previousFileName = fileName.toString();
+                indexAttachmentTerms(connection, att.getParentName(), att.getFileName(),
+                                     (String) att.getAttribute(WikiPage.CHANGENOTE));
+                connection.commit();
+                attachments++;
             }
-
         }
         catch (SQLException se)
         {
-            error("Unable to list attachments", se);
+            rollback(connection);
+            error("Building attachment search index failed", se);
         }
         finally
         {
-            releaseConnection(rs, pstmt, connection);
+            restoreAutoCommit(connection, autoCommit);
+            releaseConnection(connection);
         }
-        return result;
+        info("Attachment search index built for " + attachments + " attachments");
     }
 
-    public Collection<?> findAttachments(QueryItem[] query)
+    /**
+     * @return the number of rows in the attachment search index
+     */
+    public int getTermCount()
     {
-
-        return new ArrayList<Object>(); // fixme
+        ResultSet rs = null;
+        Statement stmt = null;
+        int count = 0;
+        Connection connection = null;
+        try
+        {
+            connection = getConnection();
+            String sql = getSQL("term.count");
+            // SELECT COUNT(*) FROM WIKI_ATT_TERM
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(sql);
+            rs.next();
+            count = rs.getInt(1);
+        }
+        catch (SQLException se)
+        {
+            error("unable to get attachment term count ", se);
+        }
+        finally
+        {
+            releaseConnection(rs, stmt, connection);
+        }
+        return count;
     }
 
     public List<Attachment> listAllChanged(Date timestamp) throws ProviderException
@@ -325,7 +1391,7 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
             // ATT_MODIFIED, ATT_MODIFIED_BY, ATT_REVNOTE, ATT_VERSION
             // FROM WIKI_ATT WHERE ATT_MODIFIED > ? ORDER BY ATT_MODIFIED DESC
 
-            pstmt = connection.prepareStatement(sql);
+            pstmt = prepareStatement(connection, "getChanged", sql);
             pstmt.setTimestamp(1, new Timestamp(timestamp.getTime()));
             rs = pstmt.executeQuery();
             while (rs.next())
@@ -370,7 +1436,7 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
             // FROM WIKI_ATT WHERE ATT_PAGENAME = ? AND ATT_FILENAME = ? AND
             // ATT_VERSION = ?
 
-            pstmt = connection.prepareStatement(sql);
+            pstmt = prepareStatement(connection, "getInfo", sql);
             pstmt.setString(1, page.getName());
             pstmt.setString(2, name);
             pstmt.setInt(3, version);
@@ -425,7 +1491,7 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
             // SELECT ATT_VERSION FROM WIKI_ATT WHERE ATT_PAGENAME = ? AND
             // ATT_FILENAME = ? ORDER BY ATT_VERSION DESC LIMIT 1
 
-            pstmt = connection.prepareStatement(sql);
+            pstmt = prepareStatement(connection, "getLatestVersion", sql);
             pstmt.setString(1, PageName);
             pstmt.setString(2, FileName);
             rs = pstmt.executeQuery();
@@ -459,7 +1525,7 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
             // ATT_VERSION FROM WIKI_ATT WHERE ATT_PAGENAME = ? AND ATT_FILENAME
             // = ? ORDER BY ATT_VERSION DESC
 
-            pstmt = connection.prepareStatement(sql);
+            pstmt = prepareStatement(connection, "getVersions", sql);
             pstmt.setString(1, att.getParentName());
             pstmt.setString(2, att.getFileName());
             rs = pstmt.executeQuery();
@@ -493,26 +1559,45 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
     {
         PreparedStatement pstmt = null;
         Connection connection = null;
+        boolean autoCommit = true;
+        uncacheList(att.getParentName());
         try
         {
             connection = getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            List<String> hashes = getConfig().isAttachmentDedupEnabled() ? readHashes(connection, att, false)
+                                                                          : new ArrayList<String>();
             String sql = getSQL("deleteVersion");
             // DELETE FROM WIKI_ATT WHERE ATT_PAGENAME = ? AND ATT_FILENAME = ?
             // AND ATT_VERSION = ?
 
-            pstmt = connection.prepareStatement(sql);
+            pstmt = prepareStatement(connection, "deleteVersion", sql);
             pstmt.setString(1, att.getParentName());
             pstmt.setString(2, att.getFileName());
             pstmt.setInt(3, att.getVersion());
             pstmt.execute();
+            releaseBlobs(connection, hashes);
+            connection.commit();
         }
         catch (SQLException se)
         {
+            rollback(connection);
             error("Delete attachment version failed " + att, se);
         }
         finally
         {
+            restoreAutoCommit(connection, autoCommit);
             releaseConnection(pstmt, connection);
+            uncacheList(att.getParentName());
+        }
+        if (m_diskCache != null)
+        {
+            m_diskCache.invalidate(att.getParentName(), att.getFileName(), att.getVersion());
+        }
+        if (getConfig().isSearchIndexEnabled())
+        {
+            reindexAttachment(att.getParentName(), att.getFileName());
         }
     }
 
@@ -520,25 +1605,43 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
     {
         PreparedStatement pstmt = null;
         Connection connection = null;
+        boolean autoCommit = true;
+        uncacheList(att.getParentName());
         try
         {
             connection = getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            List<String> hashes = getConfig().isAttachmentDedupEnabled() ? readHashes(connection, att, true)
+                                                                          : new ArrayList<String>();
             String sql = getSQL("delete");
             // DELETE FROM WIKI_ATT WHERE ATT_PAGENAME = ? AND ATT_FILENAME = ?
 
-            pstmt = connection.prepareStatement(sql);
+            pstmt = prepareStatement(connection, "delete", sql);
             pstmt.setString(1, att.getParentName());
             pstmt.setString(2, att.getFileName());
             pstmt.execute();
-            pstmt.close();
+            if (getConfig().isSearchIndexEnabled())
+            {
+                deleteAttachmentTerms(connection, att.getParentName(), att.getFileName());
+            }
+            releaseBlobs(connection, hashes);
+            connection.commit();
         }
         catch (SQLException se)
         {
+            rollback(connection);
             error("Delete attachment failed " + att, se);
         }
         finally
         {
+            restoreAutoCommit(connection, autoCommit);
             releaseConnection(pstmt, connection);
+            uncacheList(att.getParentName());
+        }
+        if (m_diskCache != null)
+        {
+            m_diskCache.invalidate(att.getParentName(), att.getFileName());
         }
     }
 
@@ -549,13 +1652,14 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
     {
         Connection connection = null;
         PreparedStatement ps = null;
+        uncacheList(oldParent, newParent);
         try
         {
             connection = getConnection();
             String sql = getSQL("move");
             // UPDATE WIKI_ATT SET ATT_PAGE_NAME = ? WHERE ATT_PAGE_NAME = ?
 
-            ps = connection.prepareStatement(sql);
+            ps = prepareStatement(connection, "move", sql);
             ps.setString(1, newParent);
             ps.setString(2, oldParent);
             ps.execute();
@@ -569,6 +1673,52 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
         finally
         {
             releaseConnection(ps, connection);
+            uncacheList(oldParent, newParent);
+        }
+        if (m_diskCache != null)
+        {
+            m_diskCache.invalidatePage(oldParent);
+            m_diskCache.invalidatePage(newParent);
+        }
+        if (getConfig().isSearchIndexEnabled())
+        {
+            // the page name is part of the indexed text
+            reindexPageAttachments(oldParent, newParent);
+        }
+    }
+
+    /**
+     * @return the local attachment cache, or null if it is not configured
+     */
+    public AttachmentDiskCache getDiskCache()
+    {
+        return m_diskCache;
+    }
+
+    private void reindexPageAttachments(String oldParent, String newParent) throws ProviderException
+    {
+        Connection connection = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            connection = getConnection();
+            String sql = getSQL("term.deletePage");
+            // DELETE FROM WIKI_ATT_TERM WHERE PAGENAME = ?
+            pstmt = prepareStatement(connection, "term.deletePage", sql);
+            pstmt.setString(1, oldParent);
+            pstmt.execute();
+        }
+        catch (SQLException se)
+        {
+            error("unable to remove attachment terms of " + oldParent, se);
+        }
+        finally
+        {
+            releaseConnection(pstmt, connection);
+        }
+        for (Attachment att : listAttachments(new WikiPage(getEngine(), newParent)))
+        {
+            reindexAttachment(newParent, att.getFileName());
         }
     }
 
@@ -620,6 +1770,10 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
         finally
         {
             m_migrating = false;
+            if (importProvider instanceof JDBCBaseProvider)
+            {
+                ((JDBCBaseProvider) importProvider).shutdown();
+            }
         }
     }
 
@@ -630,7 +1784,17 @@ public class JDBCAttachmentProvider extends JDBCBaseProvider implements WikiAtta
 
     public String getSQL(String key)
     {
-        return super.getSQL("attachment." + key);
+        return super.getSQL(getSQLKey(key));
+    }
+
+    public boolean hasSQL(String key)
+    {
+        return super.hasSQL(getSQLKey(key));
+    }
+
+    protected String getSQLKey(String key)
+    {
+        return "attachment." + key;
     }
 
 }
@@ -22,6 +22,7 @@ package com.ebizarts.jspwiki.providers.jdbcprovider;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -31,6 +32,10 @@ import org.apache.log4j.Logger;
 import org.apache.wiki.WikiEngine;
 import org.apache.wiki.WikiProvider;
 import org.apache.wiki.api.exceptions.NoRequiredPropertyException;
+import org.apache.wiki.event.WikiEngineEvent;
+import org.apache.wiki.event.WikiEvent;
+import org.apache.wiki.event.WikiEventListener;
+import org.apache.wiki.event.WikiEventUtils;
 import org.apache.wiki.util.TextUtil;
 
 /*
@@ -64,7 +69,7 @@ import org.apache.wiki.util.TextUtil;
  * @author Mikkel Troest
  * @author Xan Gregg
  */
-public abstract class JDBCBaseProvider implements WikiProvider
+public abstract class JDBCBaseProvider implements WikiProvider, WikiEventListener
 {
 
     protected boolean m_migrating = false; // Only used during migration process
@@ -73,6 +78,11 @@ public abstract class JDBCBaseProvider implements WikiProvider
 
     private JDBCProviderConfiguration config;
 
+    private SqlMetrics m_metrics;
+
+    private SlowQueryLog m_slowQueries;
+
+
     /**
      * @throws java.io.FileNotFoundException
      *             If the specified page directory does not exist.
@@ -91,6 +101,45 @@ public abstract class JDBCBaseProvider implements WikiProvider
             debug("configPath: " + configPath);
             config = new JDBCProviderConfiguration(m_engine, configPath);
         }
+        if (m_metrics == null && config.isMetricsEnabled())
+        {
+            m_metrics = new SqlMetrics(engine.getApplicationName(), getClass().getSimpleName());
+        }
+        if (m_slowQueries == null && config.getSlowQueryThreshold() > 0)
+        {
+            String explain = config.isSlowQueryExplainEnabled() ? config.getSql("explain") : null;
+            if (config.isSlowQueryExplainEnabled() && explain == null)
+            {
+                info("No explain statement defined for this database, slow queries are logged without their plan.");
+            }
+            m_slowQueries = new SlowQueryLog(config.getSlowQueryThreshold(), config.getSlowQueryParameters(), explain);
+        }
+        // the engine only keeps a weak reference to its listeners
+        WikiEventUtils.addWikiEventListener(engine, WikiEngineEvent.SHUTDOWN, this);
+    }
+
+    public void actionPerformed(WikiEvent event)
+    {
+        if (event.getType() == WikiEngineEvent.SHUTDOWN)
+        {
+            shutdown();
+        }
+    }
+
+    /**
+     * Releases the database connections of this provider. Called when the
+     * wiki shuts down, and for the source provider once a migration is done.
+     */
+    public void shutdown()
+    {
+        if (m_metrics != null)
+        {
+            m_metrics.unpublish();
+        }
+        if (config != null)
+        {
+            config.close();
+        }
     }
 
     protected JDBCProviderConfiguration getConfig()
@@ -109,6 +158,24 @@ public abstract class JDBCBaseProvider implements WikiProvider
         return sql;
     }
 
+    /**
+     * @return the configuration key of a statement of this provider, under
+     *         which it is also metered
+     */
+    protected String getSQLKey(String key)
+    {
+        return key;
+    }
+
+    /**
+     * @return true if the flavour defines the optional statement
+     */
+    public boolean hasSQL(String key)
+    {
+        String sql = config.getSql(key);
+        return sql != null && sql.trim().length() > 0;
+    }
+
     public abstract Logger getLog();
 
     protected void debug(String message)
@@ -153,7 +220,75 @@ public abstract class JDBCBaseProvider implements WikiProvider
     // public instead of protected by user request
     public Connection getConnection() throws SQLException
     {
-        return config.getConnection();
+        if (m_metrics == null)
+        {
+            return config.getConnection();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try
+        {
+            Connection con = config.getConnection();
+            failed = false;
+            return con;
+        }
+        finally
+        {
+            m_metrics.recordConnection(System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Prepares a statement, reusing one prepared earlier on the same
+     * connection where the connection provider keeps them. The statement is
+     * closed as usual, which hands it back for reuse.
+     *
+     * @param key
+     *            the key the statement was read with, see {@link #getSQL},
+     *            under which it is metered and logged when slow
+     */
+    protected PreparedStatement prepareStatement(Connection con, String key, String sql) throws SQLException
+    {
+        return watch(config.prepareStatement(con, sql), key, sql);
+    }
+
+    /**
+     * Prepares a statement with a result set type and concurrency. These are
+     * not cached, since their settings usually differ per call.
+     */
+    protected PreparedStatement prepareStatement(Connection con, String key, String sql, int resultSetType,
+                                                 int resultSetConcurrency) throws SQLException
+    {
+        return watch(con.prepareStatement(sql, resultSetType, resultSetConcurrency), key, sql);
+    }
+
+    /**
+     * @return the statement, metered and watched for slowness where enabled
+     */
+    private PreparedStatement watch(PreparedStatement stmt, String key, String sql)
+    {
+        if (m_metrics == null && m_slowQueries == null)
+        {
+            return stmt;
+        }
+        key = getSQLKey(key);
+        if (m_metrics != null)
+        {
+            stmt = m_metrics.meter(stmt, key, sql);
+        }
+        if (m_slowQueries != null)
+        {
+            stmt = m_slowQueries.watch(stmt, key, sql);
+        }
+        return stmt;
+    }
+
+    /**
+     * @return the SQL metrics of this provider, or null if they are disabled
+     */
+    public SqlMetrics getMetrics()
+    {
+        return m_metrics;
     }
 
     // public instead of protected by user request
@@ -169,6 +304,22 @@ public abstract class JDBCBaseProvider implements WikiProvider
     }
 
     public void releaseConnection(ResultSet rs, Statement stmt, Connection con)
+    {
+        try
+        {
+            closeStatement(rs, stmt);
+        }
+        finally
+        {
+            config.releaseConnection(con);
+        }
+    }
+
+    /**
+     * Closes a result set and its statement while keeping the connection, for
+     * methods that run several statements on one connection.
+     */
+    protected void closeStatement(ResultSet rs, Statement stmt)
     {
         try
         {
@@ -193,10 +344,60 @@ public abstract class JDBCBaseProvider implements WikiProvider
         {
             // Ignore, since nothing can be done
         }
-        finally
+    }
+
+    /**
+     * Rolls back the current transaction of a connection, if there is one.
+     */
+    protected void rollback(Connection con)
+    {
+        try
         {
-            config.releaseConnection(con);
+            if (con != null && !con.getAutoCommit())
+            {
+                con.rollback();
+            }
+        }
+        catch (SQLException ex)
+        {
+            error("Rollback failed", ex);
+        }
+    }
+
+    /**
+     * Puts a connection back into the auto-commit mode it had before a
+     * transaction was started on it, before it is released.
+     */
+    protected void restoreAutoCommit(Connection con, boolean autoCommit)
+    {
+        try
+        {
+            if (con != null && con.getAutoCommit() != autoCommit)
+            {
+                con.setAutoCommit(autoCommit);
+            }
+        }
+        catch (SQLException ex)
+        {
+            // Ignore, the connection is released anyway
+        }
+    }
+
+    /**
+     * @return whether a statement failed on a primary key or unique
+     *         constraint, which the standard reports as SQLState class 23
+     */
+    protected boolean isDuplicateKey(SQLException se)
+    {
+        for (SQLException e = se; e != null; e = e.getNextException())
+        {
+            String state = e.getSQLState();
+            if (state != null && state.startsWith("23"))
+            {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
@@ -59,6 +59,7 @@ public class JDBCConnectionProvider extends ConnectionProvider
     private String driver;
     private String url;
     private Properties connectionProperties;
+    private ConnectionPool pool;
 
     /** Creates a new instance of JDBCConnectionProvider */
     public JDBCConnectionProvider()
@@ -84,11 +85,67 @@ public class JDBCConnectionProvider extends ConnectionProvider
         {
             throw new InternalWikiException("Database driver could not load. Class not found. Find driver for: " + driver);
         }
+
+        int maxSize = TextUtil.getIntegerProperty(config, PROP_PREFIX + ".pool.maxSize", 0);
+        if (maxSize > 0)
+        {
+            int minIdle = TextUtil.getIntegerProperty(config, PROP_PREFIX + ".pool.minIdle", 2);
+            long maxWait = TextUtil.getIntegerProperty(config, PROP_PREFIX + ".pool.maxWaitSeconds", 30) * 1000L;
+            long idleTimeout = TextUtil.getIntegerProperty(config, PROP_PREFIX + ".pool.idleTimeoutSeconds", 600) * 1000L;
+            long validationInterval = TextUtil.getIntegerProperty(config, PROP_PREFIX + ".pool.validationIntervalSeconds",
+                                                                  30) * 1000L;
+            pool = new ConnectionPool(url, connectionProperties, maxSize, minIdle, maxWait, idleTimeout,
+                                      validationInterval);
+            log.info("Connection pool started: " + pool);
+        }
+    }
+
+    public void setValidationQuery(String sql)
+    {
+        if (pool != null)
+        {
+            pool.setValidationQuery(sql);
+        }
     }
 
     public Connection getConnection(WikiEngine engine) throws SQLException
     {
+        if (pool != null)
+        {
+            return pool.getConnection();
+        }
         return DriverManager.getConnection(url, connectionProperties);
     }
 
+    protected StatementCache getStatementCache(Connection connection)
+    {
+        if (pool != null)
+        {
+            StatementCache cache = pool.getStatementCache(connection, getStatementCacheSize(), statementHits,
+                                                          statementMisses);
+            if (cache != null)
+            {
+                return cache;
+            }
+        }
+        return super.getStatementCache(connection);
+    }
+
+    public void close()
+    {
+        if (pool != null)
+        {
+            pool.close();
+            log.info("Connection pool closed");
+        }
+    }
+
+    /**
+     * @return the built-in connection pool, or null if pooling is disabled
+     */
+    public ConnectionPool getPool()
+    {
+        return pool;
+    }
+
 }
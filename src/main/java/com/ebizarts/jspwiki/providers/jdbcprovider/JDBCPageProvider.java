@@ -32,10 +32,21 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.wiki.PageManager;
@@ -102,19 +113,93 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
 
     protected static final Logger log = Logger.getLogger(JDBCPageProvider.class);
 
+    private ProviderCache<String, WikiPage> m_pageInfoCache = new ProviderCache<String, WikiPage>(0);
+
+    /**
+     * Counts the local changes of page infos, so that a read that overlapped
+     * a change does not cache what it read.
+     */
+    private final AtomicLong m_pageInfoGeneration = new AtomicLong();
+
+    private WeightedCache<String, String> m_pageVersionCache = new WeightedCache<String, String>(0);
+
+    /**
+     * Counts the local changes of version texts, so that a read that
+     * overlapped a change does not cache what it read.
+     */
+    private final AtomicLong m_pageTextGeneration = new AtomicLong();
+
+    private ExecutorService m_searchExecutor;
+
+    /** Compresses stored page texts, null if they are stored as they are. */
+    private ContentCodec m_codec;
+
+    /** The latest version info of all pages, null if disabled. */
+    private PageDirectory m_directory;
+
+    /** Held while the page directory is read from the database. */
+    private final Object m_directoryLock = new Object();
+
+    /** Set once a missing page.getAllChangedSince has been reported. */
+    private boolean m_directoryReloadWarned;
+
     public void initialize(WikiEngine engine, Properties properties) throws NoRequiredPropertyException, IOException
     {
         debug("Initializing JDBCPageProvider");
         super.initialize(engine, properties);
         m_WikiEngine = engine;
+        m_pageInfoCache = new ProviderCache<String, WikiPage>(getConfig().getPageInfoCacheSize());
+        m_pageVersionCache = new WeightedCache<String, String>(getConfig().getPageVersionCacheSize());
+        if (getConfig().isPageDirectoryEnabled())
+        {
+            m_directory = new PageDirectory(getConfig().getPageDirectoryRefreshInterval(),
+                                            getConfig().getPageDirectoryReloadInterval());
+        }
+        if (getConfig().isLatestTableEnabled() && countPages("latest.getPageCount") == 0
+            && countPages("getPageCount") > 0)
+        {
+            rebuildLatestTable();
+        }
         int count = getPageCount();
         debug("Page count at startup: " + count);
         debug("Database->" + getConfig().toString());
+        if (getConfig().isSearchIndexEnabled() && count > 0 && getTermCount() == 0)
+        {
+            rebuildSearchIndex();
+        }
+        if (getConfig().isSearchDatabaseEnabled() && !hasSQL("search"))
+        {
+            info("No full-text search defined for this database, pages will be scanned instead.");
+        }
+        if (getConfig().isPageCompressionEnabled())
+        {
+            if (getConfig().isSearchDatabaseEnabled() && hasSQL("search"))
+            {
+                // the database cannot index what it cannot read
+                log.warn("Page compression is not possible with database search, page texts are stored as they are.");
+            }
+            else
+            {
+                m_codec = new ContentCodec(getConfig().getCompressionMinBytes());
+            }
+        }
         if (getConfig().hasDesireToMigrate())
         {
-            if (count == 0)
+            if (count == 0 || PageMigration.isResumable(getConfig().getMigrateCheckpointFile()))
             {
                 migratePages(engine);
+                if (getConfig().isLatestTableEnabled())
+                {
+                    rebuildLatestTable();
+                }
+                if (m_directory != null)
+                {
+                    m_directory.invalidate();
+                }
+                if (getConfig().isSearchIndexEnabled())
+                {
+                    rebuildSearchIndex();
+                }
             }
             else
             {
@@ -125,6 +210,23 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
         }
     }
 
+    /**
+     * @return the page text in the form to be stored
+     */
+    String encode(String text)
+    {
+        return encodeStored(ReverseDelta.escape(text));
+    }
+
+    /**
+     * @return the stored form of a version, a delta or an escaped full text,
+     *         in the form to be written to the database
+     */
+    private String encodeStored(String stored)
+    {
+        return m_codec == null ? stored : m_codec.encodeText(stored);
+    }
+
     public boolean pageExists(String page)
     {
         PreparedStatement pstmt = null;
@@ -135,7 +237,7 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
             con = getConnection();
             // SELECT TOP 1 PAGE_VERSION FROM WIKI_PAGE WHERE PAGE_NAME = ?
             String sql = getSQL("exists");
-            pstmt = con.prepareStatement(sql);
+            pstmt = prepareStatement(con, "exists", sql);
             pstmt.setString(1, page);
             ResultSet rs = pstmt.executeQuery();
             if (rs.next())
@@ -167,7 +269,7 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
             con = getConnection();
             // SELECT VERSION FROM WIKI_PAGE WHERE NAME = ? AND VERSION = ?
             String sql = getSQL("versionExists");
-            pstmt = con.prepareStatement(sql);
+            pstmt = prepareStatement(con, "versionExists", sql);
             pstmt.setString(1, page);
             pstmt.setInt(2, version);
             ResultSet rs = pstmt.executeQuery();
@@ -189,41 +291,44 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
 
     public String getPageText(String page, int version) throws ProviderException
     {
-        ResultSet rs = null;
-        PreparedStatement pstmt = null;
         if (version == WikiPageProvider.LATEST_VERSION)
         {
-            WikiPage current = getCurrentPageInfo(page);
-
-            if (current != null)
-                version = current.getVersion();
-            else
-                return (null);
+            return getCurrentPageText(page);
+        }
+        String pageText = m_pageVersionCache.get(versionKey(page, version));
+        if (pageText != null)
+        {
+            return pageText;
         }
         debug("Get " + page + " version " + version);
-        String pageText = null;
         Connection con = null;
+        long generation = m_pageTextGeneration.get();
         try
         {
             con = getConnection();
-            String sql = getSQL("getVersion");
-            // SELECT VERSION_TEXT FROM WIKI_PAGE_VERSIONS WHERE VERSION_NAME =
-            // ? AND VERSION_NUM = ?
-            pstmt = con.prepareStatement(sql);
-            pstmt.setString(1, page);
-            pstmt.setInt(2, version);
-            rs = pstmt.executeQuery();
-
-            if (rs.next())
+            if (getConfig().isHistoryDeltaEnabled())
             {
-                pageText = rs.getString(1);
+                pageText = readVersionText(con, page, version);
             }
             else
+            {
+                pageText = readStoredText(con, page, version);
+                if (ReverseDelta.isDelta(pageText))
+                {
+                    // stored while delta history was enabled
+                    pageText = readVersionText(con, page, version);
+                }
+                else
+                {
+                    pageText = ReverseDelta.unescape(pageText);
+                }
+            }
+
+            if (pageText == null)
             {
                 // This is okay.
                 info("New page '" + page + "'");
             }
-
         }
         catch (SQLException se)
         {
@@ -231,52 +336,391 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
         }
         finally
         {
-            releaseConnection(rs, pstmt, con);
+            releaseConnection(con);
+        }
+        // only once the connection is released, a cache miss takes another
+        if (pageText != null && m_pageVersionCache.isEnabled() && isFinalVersion(getCurrentPageInfo(page), version))
+        {
+            cachePageText(page, version, pageText, generation);
         }
         return pageText;
     }
 
-    public void putPageText(WikiPage page, String text)
+    /**
+     * Reads the text of a version as it is stored, which is a delta for older
+     * versions in delta history mode and an escaped full text otherwise.
+     *
+     * @return the stored text, or null if the version does not exist
+     */
+    private String readStoredText(Connection con, String pageName, int version) throws SQLException
     {
-        String previousAuthor = "";
-        Date previousModified = new Date(0l);
-        int version = 0;
+        ResultSet rs = null;
         PreparedStatement pstmt = null;
-        Connection con = null;
+        try
+        {
+            String sql = getSQL("getVersion");
+            // SELECT CONTENT FROM WIKI_PAGE WHERE NAME = ? AND VERSION = ?
+            pstmt = prepareStatement(con, "getVersion", sql);
+            pstmt.setString(1, pageName);
+            pstmt.setInt(2, version);
+            rs = pstmt.executeQuery();
+            return rs.next() ? ContentCodec.decodeText(rs.getString(1)) : null;
+        }
+        finally
+        {
+            closeStatement(rs, pstmt);
+        }
+    }
+
+    /**
+     * Reads the text of a version, restoring it from the deltas of the newer
+     * versions if needed. Only the versions up to the next snapshot version
+     * are read, and reading stops early at a newer version that is in the
+     * version cache.
+     *
+     * @return the text, or null if the version does not exist
+     */
+    private String readVersionText(Connection con, String pageName, int version) throws SQLException,
+        ProviderException
+    {
+        int interval = getConfig().getHistorySnapshotInterval();
+        int snapshot = (version + interval - 1) / interval * interval;
+        List<String> deltas = new ArrayList<String>();
+        String text = readVersionChain(con, pageName, version, snapshot, deltas);
+        if (text == null && !deltas.isEmpty())
+        {
+            // stored with another snapshot interval
+            deltas.clear();
+            text = readVersionChain(con, pageName, version, Integer.MAX_VALUE, deltas);
+        }
+        if (text == null && !deltas.isEmpty())
+        {
+            throw new ProviderException("No full text above version " + version + " of " + pageName);
+        }
+        try
+        {
+            for (int i = deltas.size() - 1; i >= 0; i--)
+            {
+                text = ReverseDelta.apply(text, deltas.get(i));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new ProviderException("Unable to restore version " + version + " of " + pageName + ": "
+                                        + e.getMessage());
+        }
+        return text;
+    }
+
+    /**
+     * Reads the versions from the given one up to the first full text.
+     *
+     * @param deltas
+     *            receives the deltas read on the way, lowest version first
+     * @return the first full text, or null if there is none up to the given
+     *         version or the version does not exist
+     */
+    private String readVersionChain(Connection con, String pageName, int version, int upTo, List<String> deltas)
+        throws SQLException
+    {
+        ResultSet rs = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getSQL("getVersionChain");
+            // SELECT VERSION, CONTENT FROM WIKI_PAGE WHERE NAME = ? AND
+            // VERSION >= ? AND VERSION <= ? ORDER BY VERSION
+            pstmt = prepareStatement(con, "getVersionChain", sql);
+            pstmt.setString(1, pageName);
+            pstmt.setInt(2, version);
+            pstmt.setInt(3, upTo);
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                int found = rs.getInt(1);
+                if (found != version && deltas.isEmpty())
+                {
+                    // no such version
+                    return null;
+                }
+                String cached = found != version ? m_pageVersionCache.get(versionKey(pageName, found)) : null;
+                if (cached != null)
+                {
+                    return cached;
+                }
+                String stored = ContentCodec.decodeText(rs.getString(2));
+                if (!ReverseDelta.isDelta(stored))
+                {
+                    return ReverseDelta.unescape(stored);
+                }
+                deltas.add(stored);
+            }
+            return null;
+        }
+        finally
+        {
+            closeStatement(rs, pstmt);
+        }
+    }
+
+    /**
+     * @return the highest version below the given one, or 0 if there is none
+     */
+    private int findPreviousVersion(Connection con, String pageName, int version) throws SQLException
+    {
+        ResultSet rs = null;
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getSQL("getPreviousVersion");
+            // SELECT MAX(VERSION) FROM WIKI_PAGE WHERE NAME = ? AND VERSION < ?
+            pstmt = prepareStatement(con, "getPreviousVersion", sql);
+            pstmt.setString(1, pageName);
+            pstmt.setInt(2, version);
+            rs = pstmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+        finally
+        {
+            closeStatement(rs, pstmt);
+        }
+    }
+
+    /**
+     * Replaces the stored text of a version, on the caller's transaction.
+     *
+     * @param stored
+     *            a delta or an escaped full text
+     */
+    private void storeVersionText(Connection con, String pageName, int version, String stored) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getSQL("setContent");
+            // UPDATE WIKI_PAGE SET CONTENT = ? WHERE NAME = ? AND VERSION = ?
+            pstmt = prepareStatement(con, "setContent", sql);
+            pstmt.setString(1, encodeStored(stored));
+            pstmt.setString(2, pageName);
+            pstmt.setInt(3, version);
+            pstmt.execute();
+        }
+        finally
+        {
+            closeStatement(null, pstmt);
+        }
+    }
+
+    /**
+     * Stores a version as a delta against the text of the next newer version,
+     * unless it is a snapshot version or the delta would not be smaller.
+     *
+     * @return true if the version is stored as a delta now
+     */
+    private boolean storeAsDelta(Connection con, String pageName, int version, String text, String newer)
+        throws SQLException
+    {
+        if (version % getConfig().getHistorySnapshotInterval() == 0)
+        {
+            return false;
+        }
+        String delta = ReverseDelta.create(newer, text);
+        if (delta == null)
+        {
+            return false;
+        }
+        storeVersionText(con, pageName, version, delta);
+        return true;
+    }
 
-        WikiPage latest = getCurrentPageInfo(page.getName());
-        if (latest != null)
+    /**
+     * Keeps the version below the latest one valid when the latest text is
+     * overwritten: a delta against the old text is replaced by a delta
+     * against the new one.
+     */
+    private void rebaseDelta(Connection con, String pageName, int latest, String text) throws SQLException
+    {
+        int previous = findPreviousVersion(con, pageName, latest);
+        String stored = previous > 0 ? readStoredText(con, pageName, previous) : null;
+        if (!ReverseDelta.isDelta(stored))
+        {
+            return;
+        }
+        String previousText;
+        try
+        {
+            previousText = ReverseDelta.apply(ReverseDelta.unescape(readStoredText(con, pageName, latest)), stored);
+        }
+        catch (IOException e)
+        {
+            error("Unable to restore version " + previous + " of " + pageName + ", leaving it as it is", e);
+            return;
+        }
+        if (!storeAsDelta(con, pageName, previous, previousText, text))
         {
-            version = latest.getVersion();
-            previousModified = latest.getLastModified();
-            previousAuthor = latest.getAuthor();
+            storeVersionText(con, pageName, previous, ReverseDelta.escape(previousText));
         }
+    }
 
-        // If same author and saved again within continuationEditTimeout, save
-        // by
-        // directly overwriting current version.
-        // Create version, if not in continuationEdit, or if migrating, or if
-        // page is non-existant
-        boolean isDifferentAuthor = page.getAuthor() == null || page.getAuthor().equals("")
-                                    || !page.getAuthor().equals(previousAuthor);
-        boolean isContinuationEditTimeExpired = System.currentTimeMillis() > getConfig().getContinuationEditTimeout()
-                                                                             + previousModified.getTime();
+    /**
+     * Stores the version below the given one as full text if it is a delta,
+     * so it no longer depends on the given version, which is about to be
+     * deleted.
+     */
+    private void materializePrevious(Connection con, String pageName, int version) throws SQLException,
+        ProviderException
+    {
+        int previous = findPreviousVersion(con, pageName, version);
+        if (previous > 0 && ReverseDelta.isDelta(readStoredText(con, pageName, previous)))
+        {
+            storeVersionText(con, pageName, previous, ReverseDelta.escape(readVersionText(con, pageName, previous)));
+        }
+    }
 
-        boolean createVersion = m_migrating || !pageExists(page.getName()) || isDifferentAuthor || isContinuationEditTimeExpired;
+    /**
+     * Rewrites the older versions of a page as reverse deltas, keeping the
+     * latest version and every snapshot version as full text. In delta mode
+     * only the version replaced by a save is stored as a delta, so versions
+     * saved before delta mode was enabled keep their full texts until their
+     * page is packed.
+     */
+    public void packPageHistory(String pageName) throws ProviderException
+    {
+        TreeSet<Integer> versions = new TreeSet<Integer>();
+        for (WikiPage page : getVersionHistory(pageName))
+        {
+            versions.add(Integer.valueOf(page.getVersion()));
+        }
+        Connection con = null;
+        boolean autoCommit = true;
+        int packed = 0;
         try
         {
             con = getConnection();
-            if (createVersion)
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            String newer = null;
+            for (Integer version : versions.descendingSet())
             {
-                // Insert page
-                if (!pageExists(page.getName()))
+                String stored = readStoredText(con, pageName, version.intValue());
+                if (stored == null)
                 {
-                    page.setVersion(1);
+                    continue;
+                }
+                String text;
+                if (ReverseDelta.isDelta(stored))
+                {
+                    if (newer == null)
+                    {
+                        throw new ProviderException("No full text above version " + version + " of " + pageName);
+                    }
+                    text = ReverseDelta.apply(newer, stored);
                 }
                 else
                 {
-                    page.setVersion(page.getVersion() + 1);
+                    text = ReverseDelta.unescape(stored);
+                    if (newer != null && storeAsDelta(con, pageName, version.intValue(), text, newer))
+                    {
+                        packed++;
+                    }
+                }
+                newer = text;
+            }
+            con.commit();
+            info("Packed " + packed + " versions of " + pageName);
+        }
+        catch (SQLException se)
+        {
+            rollback(con);
+            error("Packing the history of " + pageName + " failed", se);
+        }
+        catch (IOException e)
+        {
+            rollback(con);
+            throw new ProviderException("Packing the history of " + pageName + " failed: " + e.getMessage());
+        }
+        catch (ProviderException e)
+        {
+            rollback(con);
+            throw e;
+        }
+        finally
+        {
+            restoreAutoCommit(con, autoCommit);
+            releaseConnection(con);
+        }
+    }
+
+    /**
+     * Saves a page. The latest version is looked up and the new text is
+     * written on one connection inside one transaction, so a save costs a
+     * single connection checkout and two statements.
+     * <p>
+     * The latest version is read without a lock, so two concurrent saves may
+     * both allocate the same version. The one that loses on the primary key
+     * is retried once, against the version the other one committed.
+     */
+    public void putPageText(WikiPage page, String text)
+    {
+        for (int attempt = 1;; attempt++)
+        {
+            try
+            {
+                storePageText(page, text);
+                return;
+            }
+            catch (SQLException se)
+            {
+                if (attempt < 2 && isDuplicateKey(se))
+                {
+                    debug("Version of " + page.getName() + " allocated concurrently, retrying the save");
+                    continue;
                 }
+                error("Saving failed", se);
+                return;
+            }
+        }
+    }
+
+    private void storePageText(WikiPage page, String text) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        Connection con = null;
+        boolean autoCommit = true;
+        boolean createVersion = true;
+        int version = 0;
+        Date saved = null;
+        try
+        {
+            con = getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+
+            String previousAuthor = "";
+            Date previousModified = new Date(0l);
+            WikiPage latest = readCurrentPageInfo(con, page.getName());
+            if (latest != null)
+            {
+                version = latest.getVersion();
+                previousModified = latest.getLastModified();
+                previousAuthor = latest.getAuthor();
+            }
+
+            // If same author and saved again within continuationEditTimeout,
+            // save by directly overwriting current version.
+            // Create version, if not in continuationEdit, or if migrating, or
+            // if page is non-existant
+            boolean isDifferentAuthor = page.getAuthor() == null || page.getAuthor().equals("")
+                                        || !page.getAuthor().equals(previousAuthor);
+            boolean isContinuationEditTimeExpired = System.currentTimeMillis() > getConfig().getContinuationEditTimeout()
+                                                                                 + previousModified.getTime();
+
+            createVersion = m_migrating || latest == null || isDifferentAuthor || isContinuationEditTimeExpired;
+            if (createVersion)
+            {
+                // Insert page
+                version++;
+                page.setVersion(version);
                 if (m_migrating && page.getLastModified() != null)
                 {
                     page.setLastModified(page.getLastModified());
@@ -285,6 +729,17 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
                 {
                     page.setLastModified(new Date());
                 }
+                saved = page.getLastModified();
+
+                if (latest != null && getConfig().isHistoryDeltaEnabled())
+                {
+                    String previousText = readStoredText(con, page.getName(), latest.getVersion());
+                    if (!ReverseDelta.isDelta(previousText))
+                    {
+                        storeAsDelta(con, page.getName(), latest.getVersion(), ReverseDelta.unescape(previousText),
+                                     text);
+                    }
+                }
 
                 debug("Create page version: " + page);
                 // Insert the version into database
@@ -292,14 +747,14 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
                 // INSERT INTO WIKI_PAGE (PAGE_NAME, PAGE_VERSION,
                 // PAGE_MODIFIED, PAGE_MODIFIED_BY, PAGE_REVNOTE, PAGE_TEXT)
                 // VALUES (?, ?, ?, ?, ?)
-                pstmt = con.prepareStatement(sql);
+                pstmt = prepareStatement(con, "insertPage", sql);
                 pstmt.setString(1, page.getName());
                 pstmt.setInt(2, page.getVersion());
 
                 pstmt.setTimestamp(3, new Timestamp(page.getLastModified().getTime()));
                 pstmt.setString(4, page.getAuthor());
                 pstmt.setString(5, (String) page.getAttribute(WikiPage.CHANGENOTE));
-                pstmt.setString(6, text);
+                pstmt.setString(6, encode(text));
             }
             else
             {
@@ -309,223 +764,1177 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
                 // PAGE_REVNOTE=?, PAGE_TEXT=? WHERE PAGE_NAME =? AND
                 // PAGE_VERSION=?
                 debug("Updating version: " + latest + " " + version);
-                pstmt = con.prepareStatement(sql);
-                pstmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                uncachePageText(page.getName(), version);
+                // also with delta mode off, older versions may be deltas
+                rebaseDelta(con, page.getName(), version, text);
+                saved = new Date();
+                pstmt = prepareStatement(con, "updatePage", sql);
+                pstmt.setTimestamp(1, new Timestamp(saved.getTime()));
                 pstmt.setString(2, page.getAuthor());
                 pstmt.setString(3, (String) page.getAttribute(WikiPage.CHANGENOTE));
-                pstmt.setString(4, text);
+                pstmt.setString(4, encode(text));
                 pstmt.setString(5, page.getName());
                 pstmt.setInt(6, version);
             }
-            pstmt.execute();
+            pstmt.execute();
+            if (getConfig().isLatestTableEnabled())
+            {
+                storeLatest(con, page.getName(), version, saved, page.getAuthor(),
+                            (String) page.getAttribute(WikiPage.CHANGENOTE));
+            }
+            if (getConfig().isSearchIndexEnabled())
+            {
+                indexPageTerms(con, page.getName(), text);
+            }
+            con.commit();
+            cachePageInfo(page, version, saved);
+        }
+        catch (SQLException se)
+        {
+            rollback(con);
+            forgetPageInfo(page.getName());
+            throw se;
+        }
+        finally
+        {
+            restoreAutoCommit(con, autoCommit);
+            releaseConnection(pstmt, con);
+        }
+    }
+
+    /**
+     * Lists the latest version of every page. With the page directory this is
+     * answered from memory, after reading the pages changed since the last
+     * refresh if one is due.
+     */
+    public Collection<WikiPage> getAllPages() throws ProviderException
+    {
+        if (m_directory != null && refreshDirectory())
+        {
+            return m_directory.getAll();
+        }
+        Connection con = null;
+        try
+        {
+            con = getConnection();
+            return readAllPages(con);
+        }
+        catch (SQLException se)
+        {
+            error("unable to get all pages", se);
+        }
+        finally
+        {
+            releaseConnection(con);
+        }
+        return new ArrayList<WikiPage>();
+    }
+
+    public Collection<WikiPage> getAllChangedSince(Date date)
+    {
+        Connection con = null;
+        try
+        {
+            con = getConnection();
+            return readChangedSince(con, date);
+        }
+        catch (SQLException se)
+        {
+            error("unable to get all pages since " + date, se);
+        }
+        finally
+        {
+            releaseConnection(con);
+        }
+        return new ArrayList<WikiPage>();
+    }
+
+    private List<WikiPage> readAllPages(Connection con) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getLatestSQL("getAllPages");
+            // SELECT P1.NAME, P1.VERSION, P1.CHANGE_TIME, P1.CHANGE_BY,
+            // P1.CHANGE_NOTE FROM WIKI_PAGE P1 WHERE P1.VERSION = (SELECT
+            // MAX(VERSION) FROM WIKI_PAGE P2 WHERE P2.NAME=P1.NAME)
+            pstmt = prepareStatement(con, latestKey("getAllPages"), sql);
+            return readPageInfos(pstmt);
+        }
+        finally
+        {
+            closeStatement(null, pstmt);
+        }
+    }
+
+    private List<WikiPage> readChangedSince(Connection con, Date date) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getLatestSQL("getAllChangedSince");
+            // SELECT P1.NAME, P1.VERSION, P1.CHANGE_TIME, P1.CHANGE_BY,
+            // P1.CHANGE_NOTE FROM WIKI_PAGE P1 WHERE P1.CHANGE_TIME > ? AND
+            // P1.VERSION = (SELECT MAX(VERSION) FROM WIKI_PAGE P2 WHERE
+            // P2.NAME=P1.NAME)
+            pstmt = prepareStatement(con, latestKey("getAllChangedSince"), sql);
+            pstmt.setTimestamp(1, new Timestamp(date.getTime()));
+            return readPageInfos(pstmt);
+        }
+        finally
+        {
+            closeStatement(null, pstmt);
+        }
+    }
+
+    /**
+     * Runs a query for NAME, VERSION, CHANGE_TIME, CHANGE_BY and CHANGE_NOTE.
+     */
+    private List<WikiPage> readPageInfos(PreparedStatement pstmt) throws SQLException
+    {
+        List<WikiPage> pages = new ArrayList<WikiPage>();
+        ResultSet rs = pstmt.executeQuery();
+        try
+        {
+            while (rs.next())
+            {
+                WikiPage page = new WikiPage(getEngine(), rs.getString(1));
+                page.setVersion(rs.getInt(2));
+                // use Java Date for friendlier comparisons with other dates
+                page.setLastModified(new java.util.Date(rs.getTimestamp(3).getTime()));
+                page.setAuthor(rs.getString(4));
+                if (rs.getString(5) != null)
+                    page.setAttribute(WikiPage.CHANGENOTE, rs.getString(5));
+                pages.add(page);
+            }
+        }
+        finally
+        {
+            closeStatement(rs, null);
+        }
+        return pages;
+    }
+
+    /**
+     * Reloads the page directory or merges the recently changed pages into
+     * it, whichever is due. Only one thread reads at a time.
+     *
+     * @return false if the directory has never been loaded successfully
+     */
+    private boolean refreshDirectory()
+    {
+        long now = System.currentTimeMillis();
+        if (!m_directory.needsReload(now) && !m_directory.needsRefresh(now))
+        {
+            return true;
+        }
+        synchronized (m_directoryLock)
+        {
+            now = System.currentTimeMillis();
+            long removals = m_directory.getRemovals();
+            Connection con = null;
+            try
+            {
+                if (m_directory.needsReload(now) || (m_directory.needsRefresh(now) && !canRefreshDirectory()))
+                {
+                    con = getConnection();
+                    m_directory.load(readAllPages(con), now, removals);
+                    debug("Page directory loaded: " + m_directory);
+                }
+                else if (m_directory.needsRefresh(now))
+                {
+                    con = getConnection();
+                    m_directory.merge(readChangedSince(con, m_directory.getRefreshFrom()), now, removals);
+                }
+            }
+            catch (SQLException se)
+            {
+                error("unable to refresh the page directory", se);
+            }
+            finally
+            {
+                releaseConnection(con);
+            }
+        }
+        return m_directory.hasLoaded();
+    }
+
+    /**
+     * @return whether the changed pages can be read; flavour files copied
+     *         before page.getAllChangedSince existed can only reload the
+     *         directory completely
+     */
+    private boolean canRefreshDirectory()
+    {
+        if (hasLatestSQL("getAllChangedSince"))
+        {
+            return true;
+        }
+        if (!m_directoryReloadWarned)
+        {
+            m_directoryReloadWarned = true;
+            log.warn("No page.getAllChangedSince in the flavour file, the page directory is reloaded completely "
+                     + "on every refresh; copy the statement from the current jdbcprovider.<flavour>.properties");
+        }
+        return false;
+    }
+
+    /**
+     * Records the current latest version of a page in the page directory,
+     * after a change that may have removed it or made an older version the
+     * latest one.
+     */
+    private void updateDirectory(String pageName)
+    {
+        if (m_directory == null)
+        {
+            return;
+        }
+        WikiPage latest = getCurrentPageInfo(pageName);
+        if (latest == null)
+        {
+            m_directory.remove(pageName);
+        }
+        else
+        {
+            m_directory.put(latest);
+        }
+    }
+
+    /**
+     * @return the page directory, or null if it is disabled
+     */
+    public PageDirectory getPageDirectory()
+    {
+        return m_directory;
+    }
+
+    public int getPageCount()
+    {
+        if (m_directory != null && refreshDirectory())
+        {
+            return m_directory.size();
+        }
+        return countPages(getConfig().isLatestTableEnabled() ? "latest.getPageCount" : "getPageCount");
+    }
+
+    private int countPages(String key)
+    {
+        ResultSet rs = null;
+        Statement stmt = null;
+        int count = 0;
+        // Check if the page table exists
+        Connection connection = null;
+        try
+        {
+            connection = getConnection();
+            String sql = getSQL(key);
+            // SELECT COUNT(DISTINCT PAGE_NAME) from WIKI_PAGE
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(sql);
+            rs.next();
+            count = rs.getInt(1);
+        }
+        catch (SQLException se)
+        {
+            error("unable to get page count ", se);
+        }
+        finally
+        {
+            releaseConnection(rs, stmt, connection);
+        }
+        return count;
+    }
+
+    public Collection<SearchResult> findPages(QueryItem[] query)
+    {
+        if (getConfig().isSearchIndexEnabled())
+        {
+            return findIndexedPages(query);
+        }
+        if (getConfig().isSearchDatabaseEnabled() && hasSQL("search"))
+        {
+            return findDatabasePages(query);
+        }
+        return scanPages(query);
+    }
+
+    /**
+     * Matches the latest version of every page against the query. The pages
+     * are read with a single forward-only cursor and matched on the search
+     * threads; at most two pages per thread are held in memory while the
+     * cursor waits for the matchers to catch up.
+     * <p>
+     * Flavour files copied before page.getAllContent existed fall back to
+     * reading the pages one by one.
+     */
+    private Collection<SearchResult> scanPages(QueryItem[] query)
+    {
+        if (!hasLatestSQL("getAllContent"))
+        {
+            return scanPagesByName(query);
+        }
+        final Collection<SearchResult> res = new TreeSet<SearchResult>(new SearchResultComparator());
+        final SearchMatcher matcher = new SearchMatcher(getEngine(), query);
+        int threads = getConfig().getSearchThreads();
+        ExecutorService executor = threads > 1 ? getSearchExecutor(threads) : null;
+        int maxInFlight = threads * 2;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+
+        ResultSet rs = null;
+        PreparedStatement pstmt = null;
+        Connection con = null;
+        boolean autoCommit = true;
+        try
+        {
+            con = getConnection();
+            // some drivers only use a cursor inside a transaction
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            String key = latestKey("getAllContent");
+            String sql = getSQL(key);
+            // SELECT NAME, CONTENT FROM WIKI_PAGE WHERE <latest version>
+            pstmt = prepareStatement(con, key, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            if (getConfig().getSearchFetchSize() != 0)
+            {
+                pstmt.setFetchSize(getConfig().getSearchFetchSize());
+            }
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                final String name = rs.getString(1);
+                final String text = ReverseDelta.unescape(ContentCodec.decodeText(rs.getString(2)));
+                if (executor == null)
+                {
+                    matchPage(matcher, name, text, res);
+                    continue;
+                }
+                inFlight.acquireUninterruptibly();
+                try
+                {
+                    executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                matchPage(matcher, name, text, res);
+                            }
+                            finally
+                            {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e)
+                {
+                    inFlight.release();
+                    matchPage(matcher, name, text, res);
+                }
+            }
+            con.commit();
+        }
+        catch (SQLException se)
+        {
+            rollback(con);
+            error("Search failed", se);
+        }
+        finally
+        {
+            // wait for the pages still being matched
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+            restoreAutoCommit(con, autoCommit);
+            releaseConnection(rs, pstmt, con);
+        }
+        return res;
+    }
+
+    private Collection<SearchResult> scanPagesByName(QueryItem[] query)
+    {
+        Collection<SearchResult> res = new TreeSet<SearchResult>(new SearchResultComparator());
+        SearchMatcher matcher = new SearchMatcher(getEngine(), query);
+
+        Collection<WikiPage> wikipages = null;
+        try
+        {
+            wikipages = getAllPages();
+        }
+        catch (ProviderException e)
+        {
+            error("Search failed", e);
+            return res;
+        }
+
+        for (WikiPage page : wikipages)
+        {
+            try
+            {
+                String pagetext = getPageText(page.getName(), page.getVersion());
+                matchPage(matcher, page.getName(), pagetext, res);
+            }
+            catch (ProviderException pe)
+            {
+                error("Failed to read page: " + page, pe);
+            }
+        }
+        return res;
+    }
+
+    private void matchPage(SearchMatcher matcher, String name, String text, Collection<SearchResult> res)
+    {
+        try
+        {
+            SearchResult comparison = matcher.matchPageContent(name, text);
+            if (comparison != null)
+            {
+                synchronized (res)
+                {
+                    res.add(comparison);
+                }
+            }
+        }
+        catch (IOException se)
+        {
+            error("Failed to read page: " + name, se);
+        }
+    }
+
+    private synchronized ExecutorService getSearchExecutor(int threads)
+    {
+        if (m_searchExecutor == null)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                                 new LinkedBlockingQueue<Runnable>(),
+                                                                 new SearchThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            m_searchExecutor = executor;
+        }
+        return m_searchExecutor;
+    }
+
+    private static class SearchThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "JDBCPageProvider-search-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Resolves a query against the WIKI_PAGE_TERM table. Only the pages that
+     * match are read, from the page info cache where possible.
+     */
+    private Collection<SearchResult> findIndexedPages(QueryItem[] query)
+    {
+        Collection<SearchResult> res = new TreeSet<SearchResult>(new SearchResultComparator());
+        Map<String, Integer> scores = null;
+        Connection con = null;
+        try
+        {
+            con = getConnection();
+            final Connection termConnection = con;
+            scores = new SearchTerms()
+            {
+                protected Map<String, Integer> lookup(String term) throws SQLException
+                {
+                    return findTerm(termConnection, term);
+                }
+            }.resolve(query);
+        }
+        catch (SQLException se)
+        {
+            error("Index search failed", se);
+            return res;
+        }
+        finally
+        {
+            releaseConnection(con);
+        }
+
+        for (Map.Entry<String, Integer> hit : scores.entrySet())
+        {
+            WikiPage page = getCurrentPageInfo(hit.getKey());
+            if (page != null)
+            {
+                res.add(new PageSearchResult(page, hit.getValue().intValue()));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Hands the query to the full-text search of the database. The query is
+     * translated with the search templates of the flavour and bound to every
+     * parameter of the page.search statement.
+     */
+    private Collection<SearchResult> findDatabasePages(QueryItem[] query)
+    {
+        Collection<SearchResult> res = new TreeSet<SearchResult>(new SearchResultComparator());
+        FullTextQuery fullText = new FullTextQuery(getSQL("search.required"), getSQL("search.forbidden"),
+                                                   getSQL("search.requested"), getSQL("search.and"),
+                                                   getSQL("search.or"),
+                                                   hasSQL("search.optional") ? getSQL("search.optional") : null);
+        String expression = fullText.build(query);
+        if (expression == null)
+        {
+            return res; // nothing to look for
+        }
+
+        Map<String, Integer> scores = new LinkedHashMap<String, Integer>();
+        ResultSet rs = null;
+        PreparedStatement pstmt = null;
+        Connection con = null;
+        try
+        {
+            con = getConnection();
+            String sql = getSQL("search");
+            // SELECT NAME, SCORE FROM WIKI_PAGE WHERE <latest version> AND <CONTENT matches ?>
+            pstmt = prepareStatement(con, "search", sql);
+            int parameters = countParameters(sql);
+            for (int i = 1; i <= parameters; i++)
+            {
+                pstmt.setString(i, expression);
+            }
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                scores.put(rs.getString(1), Integer.valueOf(rs.getInt(2)));
+            }
+        }
+        catch (SQLException se)
+        {
+            error("Full-text search failed: " + expression, se);
+            return res;
+        }
+        finally
+        {
+            releaseConnection(rs, pstmt, con);
+        }
+
+        for (Map.Entry<String, Integer> hit : scores.entrySet())
+        {
+            WikiPage page = getCurrentPageInfo(hit.getKey());
+            if (page != null)
+            {
+                res.add(new PageSearchResult(page, hit.getValue().intValue()));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the number of parameter markers outside of quoted literals
+     */
+    private static int countParameters(String sql)
+    {
+        int count = 0;
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++)
+        {
+            char c = sql.charAt(i);
+            if (quote != 0)
+            {
+                if (c == quote)
+                {
+                    quote = 0;
+                }
+            }
+            else if (c == '\'' || c == '"')
+            {
+                quote = c;
+            }
+            else if (c == '?')
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the pages containing the term, mapped to the term frequency
+     */
+    private Map<String, Integer> findTerm(Connection con, String term) throws SQLException
+    {
+        Map<String, Integer> pages = new HashMap<String, Integer>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try
+        {
+            String sql = getSQL("term.find");
+            // SELECT NAME, FREQ FROM WIKI_PAGE_TERM WHERE TERM = ?
+            pstmt = prepareStatement(con, "term.find", sql);
+            pstmt.setString(1, term);
+            rs = pstmt.executeQuery();
+            while (rs.next())
+            {
+                pages.put(rs.getString(1), Integer.valueOf(rs.getInt(2)));
+            }
+        }
+        finally
+        {
+            closeStatement(rs, pstmt);
+        }
+        return pages;
+    }
+
+    /**
+     * Replaces the indexed terms of a page, on the caller's connection and
+     * transaction.
+     *
+     * @param text
+     *            the text of the latest version, or null to remove the page
+     *            from the index
+     */
+    private void indexPageTerms(Connection con, String pageName, String text) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            String sql = getSQL("term.delete");
+            // DELETE FROM WIKI_PAGE_TERM WHERE NAME = ?
+            pstmt = prepareStatement(con, "term.delete", sql);
+            pstmt.setString(1, pageName);
+            pstmt.execute();
+            pstmt.close();
+            pstmt = null;
+
+            Map<String, Integer> counts = SearchTerms.count(text);
+            if (!counts.isEmpty())
+            {
+                sql = getSQL("term.insert");
+                // INSERT INTO WIKI_PAGE_TERM (TERM, NAME, FREQ) VALUES (?, ?, ?)
+                pstmt = prepareStatement(con, "term.insert", sql);
+                for (Map.Entry<String, Integer> e : counts.entrySet())
+                {
+                    pstmt.setString(1, e.getKey());
+                    pstmt.setString(2, pageName);
+                    pstmt.setInt(3, e.getValue().intValue());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+            }
+        }
+        finally
+        {
+            closeStatement(null, pstmt);
+        }
+    }
+
+    /**
+     * Re-indexes a page from its latest version, after the set of versions
+     * changed behind the index.
+     */
+    private void reindexPage(String pageName) throws ProviderException
+    {
+        String text = getCurrentPageText(pageName);
+        Connection con = null;
+        boolean autoCommit = true;
+        try
+        {
+            con = getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            indexPageTerms(con, pageName, text);
+            con.commit();
+        }
+        catch (SQLException se)
+        {
+            rollback(con);
+            error("unable to index page " + pageName, se);
+        }
+        finally
+        {
+            restoreAutoCommit(con, autoCommit);
+            releaseConnection(con);
+        }
+    }
+
+    /**
+     * Rebuilds the search index from the latest version of every page. Done
+     * automatically at startup when the index is enabled but empty.
+     */
+    public void rebuildSearchIndex()
+    {
+        info("Building search index");
+        int pages = 0;
+        try
+        {
+            for (WikiPage page : getAllPages())
+            {
+                reindexPage(page.getName());
+                pages++;
+            }
+        }
+        catch (ProviderException pe)
+        {
+            error("Building search index failed", pe);
+        }
+        info("Search index built for " + pages + " pages");
+    }
+
+    /**
+     * @return the number of rows in the search index
+     */
+    public int getTermCount()
+    {
+        ResultSet rs = null;
+        Statement stmt = null;
+        int count = 0;
+        Connection connection = null;
+        try
+        {
+            connection = getConnection();
+            String sql = getSQL("term.count");
+            // SELECT COUNT(*) FROM WIKI_PAGE_TERM
+            stmt = connection.createStatement();
+            rs = stmt.executeQuery(sql);
+            rs.next();
+            count = rs.getInt(1);
+        }
+        catch (SQLException se)
+        {
+            error("unable to get term count ", se);
+        }
+        finally
+        {
+            releaseConnection(rs, stmt, connection);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the info and the text of the latest version of a page with a
+     * single statement. The info is put into the page info cache on the way.
+     *
+     * Flavour files copied before page.getCurrentWithInfo existed fall back to
+     * reading the info and the text separately.
+     *
+     * @return the text of the latest version, or null if the page does not
+     *         exist
+     */
+    private String getCurrentPageText(String pageName) throws ProviderException
+    {
+        if (!hasLatestSQL("getCurrentWithInfo"))
+        {
+            WikiPage page = getCurrentPageInfo(pageName);
+            return page == null ? null : getPageText(pageName, page.getVersion());
+        }
+        ResultSet rs = null;
+        PreparedStatement pstmt = null;
+        String pageText = null;
+        Connection con = null;
+        long generation = m_pageInfoGeneration.get();
+        long textGeneration = m_pageTextGeneration.get();
+        try
+        {
+            con = getConnection();
+            String sql = getLatestSQL("getCurrentWithInfo");
+            // SELECT VERSION, CHANGE_TIME, CHANGE_BY, CHANGE_NOTE, CONTENT
+            // FROM WIKI_PAGE WHERE NAME = ? ORDER BY VERSION DESC LIMIT 1
+            pstmt = prepareStatement(con, latestKey("getCurrentWithInfo"), sql);
+            pstmt.setString(1, pageName);
+            rs = pstmt.executeQuery();
+
+            if (rs.next())
+            {
+                WikiPage page = new WikiPage(getEngine(), pageName);
+                page.setVersion(rs.getInt(1));
+                // use Java Date for friendlier comparisons with other dates
+                page.setLastModified(new java.util.Date(rs.getTimestamp(2).getTime()));
+                page.setAuthor(rs.getString(3));
+                if (rs.getString(4) != null)
+                    page.setAttribute(WikiPage.CHANGENOTE, rs.getString(4));
+                pageText = ReverseDelta.unescape(ContentCodec.decodeText(rs.getString(5)));
+                cachePageInfo(pageName, page, generation);
+                if (isFinalVersion(page, page.getVersion()))
+                {
+                    cachePageText(pageName, page.getVersion(), pageText, textGeneration);
+                }
+            }
+        }
+        catch (SQLException se)
+        {
+            error("unable to get current page text for " + pageName, se);
+        }
+        finally
+        {
+            releaseConnection(rs, pstmt, con);
+        }
+        return pageText;
+    }
+
+    /**
+     * Always returns the latest version here.
+     */
+    private WikiPage getCurrentPageInfo(String pageName)
+    {
+        WikiPage cached = m_pageInfoCache.get(pageName);
+        if (cached != null)
+        {
+            return (WikiPage) cached.clone();
+        }
+
+        WikiPage page = null;
+        Connection con = null;
+        long generation = m_pageInfoGeneration.get();
+        try
+        {
+            con = getConnection();
+            page = readCurrentPageInfo(con, pageName);
+            if (page != null)
+            {
+                cachePageInfo(pageName, (WikiPage) page.clone(), generation);
+            }
         }
         catch (SQLException se)
         {
-            error("Saving failed", se);
+            error("unable to get current page info for " + pageName, se);
         }
         finally
         {
-            releaseConnection(pstmt, con);
+            releaseConnection(con);
         }
+        return page;
     }
 
-    public Collection<WikiPage> getAllPages() throws ProviderException
+    /**
+     * Reads the info of the latest version of a page on the given connection,
+     * bypassing the page info cache.
+     *
+     * @return the latest version, or null if the page does not exist
+     */
+    private WikiPage readCurrentPageInfo(Connection con, String pageName) throws SQLException
+    {
+        return readCurrentPageInfo(con, pageName, latestKey("getCurrentInfo"));
+    }
+
+    private WikiPage readCurrentPageInfo(Connection con, String pageName, String key) throws SQLException
     {
         ResultSet rs = null;
         PreparedStatement pstmt = null;
-        Collection<WikiPage> set = new ArrayList<WikiPage>();
-
-        Connection con = null;
+        WikiPage page = null;
         try
         {
-            con = getConnection();
-            String sql = getSQL("getAllPages");
-            // SELECT P1.PAGE_NAME, P1.PAGE_VERSION, P1.PAGE_MODIFIED,
-            // P1.PAGE_MODIFIED_BY, P1.PAGE_REVNOTE FROM WIKI_PAGE P1 WHERE
+            // SELECT P1.PAGE_VERSION, P1.PAGE_MODIFIED, P1.PAGE_MODIFIED_BY,
+            // P1.REVNOTE FROM WIKI_PAGE P1 WHERE P1.PAGE_NAME=? AND
             // P1.PAGE_VERSION = (SELECT MAX(PAGE_VERSION) FROM WIKI_PAGE P2
             // WHERE P2.PAGE_NAME=P1.PAGE_NAME)
-            pstmt = con.prepareStatement(sql);
+            pstmt = prepareStatement(con, key, getSQL(key));
+            pstmt.setString(1, pageName);
             rs = pstmt.executeQuery();
-            while (rs.next())
+
+            if (rs.next())
             {
-                WikiPage page = new WikiPage(getEngine(), rs.getString(1));
-                page.setVersion(rs.getInt(2));
+                page = new WikiPage(getEngine(), pageName);
+                page.setVersion(rs.getInt(1));
                 // use Java Date for friendlier comparisons with other dates
-                page.setLastModified(new java.util.Date(rs.getTimestamp(3).getTime()));
-                page.setAuthor(rs.getString(4));
-                if (rs.getString(5) != null)
-                    page.setAttribute(WikiPage.CHANGENOTE, rs.getString(5));
-
-                set.add(page);
+                page.setLastModified(new java.util.Date(rs.getTimestamp(2).getTime()));
+                page.setAuthor(rs.getString(3));
+                if (rs.getString(4) != null)
+                    page.setAttribute(WikiPage.CHANGENOTE, rs.getString(4));
             }
         }
-        catch (SQLException se)
-        {
-            error("unable to get all pages", se);
-        }
         finally
         {
-            releaseConnection(rs, pstmt, con);
+            closeStatement(rs, pstmt);
         }
+        return page;
+    }
+
+    /**
+     * @return the statement for a latest version lookup, reading the latest
+     *         version table if it is enabled
+     */
+    private String getLatestSQL(String key)
+    {
+        return getSQL(latestKey(key));
+    }
 
-        return set;
+    /**
+     * @return the key of the statement for a latest version lookup
+     */
+    private String latestKey(String key)
+    {
+        return getConfig().isLatestTableEnabled() ? "latest." + key : key;
     }
 
-    public Collection<WikiPage> getAllChangedSince(Date date)
+    /**
+     * @return whether the statement for a latest version lookup is defined
+     */
+    private boolean hasLatestSQL(String key)
     {
-        ResultSet rs = null;
-        PreparedStatement pstmt = null;
-        Collection<WikiPage> set = new ArrayList<WikiPage>();
+        return hasSQL(latestKey(key));
+    }
 
-        Connection con = null;
+    /**
+     * Records the latest version of a page in WIKI_PAGE_LATEST, on the
+     * caller's transaction.
+     */
+    private void storeLatest(Connection con, String pageName, int version, Date changed, String author,
+                             String changeNote) throws SQLException
+    {
+        PreparedStatement pstmt = null;
         try
         {
-            con = getConnection();
-            String sql = getSQL("getAllChangedSince");
-            // SELECT P1.PAGE_NAME, P1.PAGE_VERSION, P1.PAGE_MODIFIED,
-            // P1.PAGE_MODIFIED_BY, P1.PAGE_REVNOTE FROM WIKI_PAGE P1 WHERE
-            // P1.PAGE_MODIFIED > ? AND P1.PAGE_VERSION = (SELECT
-            // MAX(PAGE_VERSION) FROM WIKI_PAGE P2 WHERE
-            // P2.PAGE_NAME=P1.PAGE_NAME)
-            pstmt = con.prepareStatement(sql);
-            pstmt.setTimestamp(1, new Timestamp(date.getTime()));
-            rs = pstmt.executeQuery();
-            while (rs.next())
+            String sql = getSQL("latest.update");
+            // UPDATE WIKI_PAGE_LATEST SET VERSION = ?, CHANGE_TIME = ?,
+            // CHANGE_BY = ?, CHANGE_NOTE = ? WHERE NAME = ?
+            pstmt = prepareStatement(con, "latest.update", sql);
+            pstmt.setInt(1, version);
+            pstmt.setTimestamp(2, new Timestamp(changed.getTime()));
+            pstmt.setString(3, author);
+            pstmt.setString(4, changeNote);
+            pstmt.setString(5, pageName);
+            if (pstmt.executeUpdate() > 0)
             {
-                WikiPage page = new WikiPage(getEngine(), rs.getString(1));
-                page.setVersion(rs.getInt(2));
-                // use Java Date for friendlier comparisons with other dates
-                page.setLastModified(new java.util.Date(rs.getTimestamp(3).getTime()));
-                page.setAuthor(rs.getString(4));
-                if (rs.getString(5) != null)
-                    page.setAttribute(WikiPage.CHANGENOTE, rs.getString(5));
-                set.add(page);
+                return;
             }
+            pstmt.close();
+            sql = getSQL("latest.insert");
+            // INSERT INTO WIKI_PAGE_LATEST (NAME, VERSION, CHANGE_TIME,
+            // CHANGE_BY, CHANGE_NOTE) VALUES (?, ?, ?, ?, ?)
+            pstmt = prepareStatement(con, "latest.insert", sql);
+            pstmt.setString(1, pageName);
+            pstmt.setInt(2, version);
+            pstmt.setTimestamp(3, new Timestamp(changed.getTime()));
+            pstmt.setString(4, author);
+            pstmt.setString(5, changeNote);
+            pstmt.execute();
         }
-        catch (SQLException se)
+        finally
         {
-            error("unable to get all pages since " + date, se);
+            closeStatement(null, pstmt);
         }
-        finally
+    }
+
+    /**
+     * Sets the WIKI_PAGE_LATEST row of a page from WIKI_PAGE, or removes it
+     * if the page has no versions left, on the caller's transaction.
+     */
+    private void syncLatest(Connection con, String pageName) throws SQLException
+    {
+        WikiPage latest = readCurrentPageInfo(con, pageName, "getCurrentInfo");
+        if (latest == null)
         {
-            releaseConnection(rs, pstmt, con);
+            updateLatest(con, "latest.delete", pageName);
+        }
+        else
+        {
+            storeLatest(con, pageName, latest.getVersion(), latest.getLastModified(), latest.getAuthor(),
+                        (String) latest.getAttribute(WikiPage.CHANGENOTE));
         }
+    }
 
-        return set;
+    /**
+     * Runs a WIKI_PAGE_LATEST statement with page name parameters.
+     */
+    private void updateLatest(Connection con, String key, String... pageNames) throws SQLException
+    {
+        PreparedStatement pstmt = null;
+        try
+        {
+            pstmt = prepareStatement(con, key, getSQL(key));
+            for (int i = 0; i < pageNames.length; i++)
+            {
+                pstmt.setString(i + 1, pageNames[i]);
+            }
+            pstmt.execute();
+        }
+        finally
+        {
+            closeStatement(null, pstmt);
+        }
     }
 
-    public int getPageCount()
+    /**
+     * Refills WIKI_PAGE_LATEST from WIKI_PAGE. This happens at startup when
+     * the table is enabled and empty, and after a migration.
+     */
+    public void rebuildLatestTable()
     {
-        ResultSet rs = null;
+        Connection con = null;
         Statement stmt = null;
-        int count = 0;
-        // Check if the page table exists
-        Connection connection = null;
+        boolean autoCommit = true;
         try
         {
-            connection = getConnection();
-            String sql = getSQL("getPageCount");
-            // SELECT COUNT(DISTINCT PAGE_NAME) from WIKI_PAGE
-            stmt = connection.createStatement();
-            rs = stmt.executeQuery(sql);
-            rs.next();
-            count = rs.getInt(1);
+            con = getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            stmt = con.createStatement();
+            stmt.executeUpdate(getSQL("latest.clear"));
+            // INSERT INTO WIKI_PAGE_LATEST (...) SELECT ... FROM WIKI_PAGE P1
+            // WHERE P1.VERSION = (SELECT MAX(P2.VERSION) ...)
+            int count = stmt.executeUpdate(getSQL("latest.fill"));
+            con.commit();
+            info("Latest version table rebuilt with " + count + " pages");
         }
         catch (SQLException se)
         {
-            error("unable to get page count ", se);
+            rollback(con);
+            error("Rebuilding the latest version table failed", se);
         }
         finally
         {
-            releaseConnection(rs, stmt, connection);
+            restoreAutoCommit(con, autoCommit);
+            releaseConnection(stmt, con);
         }
-        return count;
+    }
 
+    /**
+     * Caches the page info read from the database, unless this provider has
+     * changed a page info since the read started; the read may then have
+     * seen the state before the change.
+     *
+     * @param generation
+     *            the page info generation from before the read
+     */
+    private void cachePageInfo(String pageName, WikiPage page, long generation)
+    {
+        synchronized (m_pageInfoGeneration)
+        {
+            if (m_pageInfoGeneration.get() == generation)
+            {
+                m_pageInfoCache.put(pageName, page);
+            }
+        }
     }
 
-    public Collection<SearchResult> findPages(QueryItem[] query)
+    /**
+     * Drops the cached info of a page after a change.
+     */
+    private void forgetPageInfo(String pageName)
     {
-        Collection<SearchResult> res = new TreeSet<SearchResult>(new SearchResultComparator());
-        SearchMatcher matcher = new SearchMatcher(getEngine(), query);
+        synchronized (m_pageInfoGeneration)
+        {
+            m_pageInfoGeneration.incrementAndGet();
+            m_pageInfoCache.remove(pageName);
+        }
+    }
 
-        Collection<?> wikipages = null;
-        try
+    /**
+     * Records the metadata of a freshly saved page version as the latest
+     * version of that page.
+     */
+    private void cachePageInfo(WikiPage saved, int version, Date lastModified)
+    {
+        WikiPage info = new WikiPage(getEngine(), saved.getName());
+        info.setVersion(version);
+        info.setLastModified(lastModified);
+        info.setAuthor(saved.getAuthor());
+        if (saved.getAttribute(WikiPage.CHANGENOTE) != null)
+            info.setAttribute(WikiPage.CHANGENOTE, saved.getAttribute(WikiPage.CHANGENOTE));
+        synchronized (m_pageInfoGeneration)
         {
-            wikipages = getAllPages();
+            m_pageInfoGeneration.incrementAndGet();
+            m_pageInfoCache.put(saved.getName(), info);
         }
-        catch (ProviderException e)
+        if (m_directory != null)
         {
+            m_directory.put((WikiPage) info.clone());
         }
+    }
 
-        // nextfile:
-        for (Iterator<?> i = wikipages.iterator(); i.hasNext();)
+    /**
+     * A page version can no longer change once a newer version exists, or
+     * once the continuation edit period of the latest version has passed.
+     *
+     * @param latest
+     *            the info of the latest version of the page, may be null
+     */
+    private boolean isFinalVersion(WikiPage latest, int version)
+    {
+        if (latest == null || version > latest.getVersion())
         {
-            // debug("Searching page "+wikipages[i].getPath() );
-            WikiPage page = (WikiPage) i.next();
-            try
+            return false;
+        }
+        return version < latest.getVersion()
+               || System.currentTimeMillis() > latest.getLastModified().getTime() + getConfig().getContinuationEditTimeout();
+    }
+
+    /**
+     * Caches a version text read from the database, unless this provider has
+     * changed a version text since the read started; a deleted version may
+     * then have been saved again under the same number.
+     *
+     * @param generation
+     *            the page text generation from before the read
+     */
+    private void cachePageText(String pageName, int version, String text, long generation)
+    {
+        if (text != null)
+        {
+            synchronized (m_pageTextGeneration)
             {
-                String pagetext = getPageText(page.getName(), page.getVersion());
-                SearchResult comparison = matcher.matchPageContent(page.getName(), pagetext);
-                if (comparison != null)
+                if (m_pageTextGeneration.get() == generation)
                 {
-                    res.add(comparison);
+                    // two bytes per char plus the String and entry overhead
+                    m_pageVersionCache.put(versionKey(pageName, version), text, 2L * text.length() + 64);
                 }
-
-            }
-            catch (IOException se)
-            {
-                error("Failed to read", se);
-            }
-            catch (ProviderException pe)
-            {
-                error("Failed to read page: " + page, pe);
             }
         }
+    }
 
-        return res;
+    private static String versionKey(String pageName, int version)
+    {
+        return version + ":" + pageName;
     }
 
     /**
-     * Always returns the latest version here.
+     * Drops all cached version texts of a page.
      */
-    private WikiPage getCurrentPageInfo(String pageName)
+    private void uncachePageText(String pageName)
     {
-        ResultSet rs = null;
-        PreparedStatement pstmt = null;
-        WikiPage page = null;
-        Connection con = null;
-        try
+        synchronized (m_pageTextGeneration)
         {
-            con = getConnection();
-            String sql = getSQL("getCurrentInfo");
-            // SELECT P1.PAGE_VERSION, P1.PAGE_MODIFIED, P1.PAGE_MODIFIED_BY,
-            // P1.REVNOTE FROM WIKI_PAGE P1 WHERE P1.PAGE_NAME=? AND
-            // P1.PAGE_VERSION = (SELECT MAX(PAGE_VERSION) FROM WIKI_PAGE P2
-            // WHERE P2.PAGE_NAME=P1.PAGE_NAME)
-            pstmt = con.prepareStatement(sql);
-            pstmt.setString(1, pageName);
-            rs = pstmt.executeQuery();
-
-            if (rs.next())
+            m_pageTextGeneration.incrementAndGet();
+            if (!m_pageVersionCache.isEnabled())
             {
-                page = new WikiPage(getEngine(), pageName);
-                page.setVersion(rs.getInt(1));
-                // use Java Date for friendlier comparisons with other dates
-                page.setLastModified(new java.util.Date(rs.getTimestamp(2).getTime()));
-                page.setAuthor(rs.getString(3));
-                if (rs.getString(4) != null)
-                    page.setAttribute(WikiPage.CHANGENOTE, rs.getString(4));
+                return;
+            }
+            for (String key : m_pageVersionCache.keys())
+            {
+                if (key.substring(key.indexOf(':') + 1).equals(pageName))
+                {
+                    m_pageVersionCache.remove(key);
+                }
             }
         }
-        catch (SQLException se)
-        {
-            error("unable to get current page info for " + pageName, se);
-        }
-        finally
+    }
+
+    /**
+     * Drops the cached text of one version of a page.
+     */
+    private void uncachePageText(String pageName, int version)
+    {
+        synchronized (m_pageTextGeneration)
         {
-            releaseConnection(rs, pstmt, con);
+            m_pageTextGeneration.incrementAndGet();
+            m_pageVersionCache.remove(versionKey(pageName, version));
         }
-        return page;
+    }
+
+    /**
+     * @return the cache of older page version texts
+     */
+    public WeightedCache<String, String> getPageVersionCache()
+    {
+        return m_pageVersionCache;
+    }
+
+    /**
+     * @return the cache of latest page versions, including its hit and miss
+     *         counters
+     */
+    public ProviderCache<String, WikiPage> getPageInfoCache()
+    {
+        return m_pageInfoCache;
     }
 
     /**
@@ -550,7 +1959,7 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
                 // SELECT PAGE_VERSION, PAGE_MODIFIED, PAGE_MODIFIED_BY,
                 // PAGE_REVNOTE FROM WIKI_PAGE WHERE PAGE_NAME = ? AND
                 // PAGE_VERSION = ?
-                pstmt = con.prepareStatement(sql);
+                pstmt = prepareStatement(con, "getVersionInfo", sql);
                 pstmt.setString(1, page);
                 pstmt.setInt(2, version);
                 rs = pstmt.executeQuery();
@@ -597,7 +2006,7 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
             // SELECT PAGE_VERSION, PAGE_MODIFIED, PAGE_MODIFIED_BY,
             // PAGE_REVNOTE, FROM WIKI_PAGE WHERE PAGE_NAME = ? ORDER BY
             // PAGE_VERSION DESC
-            pstmt = con.prepareStatement(sql);
+            pstmt = prepareStatement(con, "getVersions", sql);
             pstmt.setString(1, page);
             rs = pstmt.executeQuery();
 
@@ -634,47 +2043,87 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
     {
         Connection con = null;
         PreparedStatement psVer = null;
+        boolean autoCommit = true;
         try
         {
             con = getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            materializePrevious(con, pageName, version);
             String sql = getSQL("deleteVersion");
             // DELETE FROM WIKI_PAGE WHERE PAGE_NAME = ? AND PAGE_VERSION = ?
-            psVer = con.prepareStatement(sql);
+            psVer = prepareStatement(con, "deleteVersion", sql);
             psVer.setString(1, pageName);
             psVer.setInt(2, version);
             psVer.execute();
+            if (getConfig().isLatestTableEnabled())
+            {
+                syncLatest(con, pageName);
+            }
+            con.commit();
         }
         catch (SQLException se)
         {
+            rollback(con);
             error("Delete version failed " + pageName + ":" + version, se);
         }
+        catch (ProviderException e)
+        {
+            rollback(con);
+            throw e;
+        }
         finally
         {
+            forgetPageInfo(pageName);
+            uncachePageText(pageName);
+            restoreAutoCommit(con, autoCommit);
             releaseConnection(psVer, con);
         }
+        updateDirectory(pageName);
+        if (getConfig().isSearchIndexEnabled())
+        {
+            reindexPage(pageName);
+        }
     }
 
     public void deletePage(String pageName) throws ProviderException
     {
         Connection connection = null;
         PreparedStatement psVer = null;
+        boolean autoCommit = true;
         try
         {
             connection = getConnection();
+            autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
             String sql = getSQL("delete");
             // DELETE FROM WIKI_PAGE WHERE VERSION_NAME = ?
-            psVer = connection.prepareStatement(sql);
+            psVer = prepareStatement(connection, "delete", sql);
             psVer.setString(1, pageName);
             psVer.execute();
+            if (getConfig().isLatestTableEnabled())
+            {
+                updateLatest(connection, "latest.delete", pageName);
+            }
+            if (getConfig().isSearchIndexEnabled())
+            {
+                indexPageTerms(connection, pageName, null);
+            }
+            connection.commit();
         }
         catch (SQLException se)
         {
+            rollback(connection);
             error("Delete failed " + pageName, se);
         }
         finally
         {
+            forgetPageInfo(pageName);
+            uncachePageText(pageName);
+            restoreAutoCommit(connection, autoCommit);
             releaseConnection(psVer, connection);
         }
+        updateDirectory(pageName);
     }
 
     /* (non-Javadoc)
@@ -684,27 +2133,53 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
     {
         PreparedStatement pstmt = null;
         Connection con = null;
+        boolean autoCommit = true;
         try
         {
             con = getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
             String sql = getSQL("move");
             // UPDATE WIKI_PAGE SET PAGE_NAME = ? WHERE PAGE_NAME = ?
-            pstmt = con.prepareStatement(sql);
+            pstmt = prepareStatement(con, "move", sql);
             pstmt.setString(1, to);
             pstmt.setString(2, from);
             pstmt.execute();
+            if (getConfig().isLatestTableEnabled())
+            {
+                updateLatest(con, "latest.move", to, from);
+            }
 
+            if (getConfig().isSearchIndexEnabled())
+            {
+                pstmt.close();
+                sql = getSQL("term.move");
+                // UPDATE WIKI_PAGE_TERM SET NAME = ? WHERE NAME = ?
+                pstmt = prepareStatement(con, "term.move", sql);
+                pstmt.setString(1, to);
+                pstmt.setString(2, from);
+                pstmt.execute();
+            }
+            con.commit();
         }
         catch (SQLException se)
         {
+            rollback(con);
             String message = "Moving '" + from + "' to '" + to + "' failed";
             error(message, se);
             throw new ProviderException(message + ": " + se.getMessage());
         }
         finally
         {
+            forgetPageInfo(from);
+            forgetPageInfo(to);
+            uncachePageText(from);
+            uncachePageText(to);
+            restoreAutoCommit(con, autoCommit);
             releaseConnection(pstmt, con);
         }
+        updateDirectory(from);
+        updateDirectory(to);
     }
 
     /**
@@ -712,12 +2187,11 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
      * provider is specified by the properties file at the given path.
      * 2007-02-12 MT Fixed migratePages() to comply with new schema/sql (added
      * PAGE_REVNOTE)
+     *
+     * @see PageMigration
      */
-    @SuppressWarnings("unchecked")
     private void migratePages(WikiEngine engine) throws IOException
     {
-        PreparedStatement pstmt;
-        Connection con;
         Properties importProps = new Properties();
         info("Migrating pages from: " + getConfig().getMigrateFrom());
         importProps.load(new FileInputStream(getConfig().getMigrateFrom()));
@@ -738,59 +2212,8 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
         {
             m_migrating = true;
             importProvider.initialize(engine, importProps);
-
-            Collection<WikiPage> allPages = importProvider.getAllPages();
-            con = getConnection();
-            String sql = getSQL("insertPage");
-            // INSERT INTO WIKI_PAGE (PAGE_NAME, PAGE_VERSION, PAGE_MODIFIED,
-            // PAGE_MODIFIED_BY, PAGE_REVNOTE, PAGE_TEXT) VALUES (?, ?, ?, ?, ?)
-            pstmt = con.prepareStatement(sql);
-            for (Iterator<WikiPage> i = allPages.iterator(); i.hasNext();)
-            {
-                WikiPage latest = i.next();
-
-                List<WikiPage> pages = importProvider.getVersionHistory(latest.getName());
-                if (pages.size() > 0)
-                {
-
-                    info("Migrating " + pages.size() + " versions of " + latest.getName());
-                    for (Iterator<WikiPage> p = pages.iterator(); p.hasNext();)
-                    {
-                        WikiPage page = p.next();
-                        String text = importProvider.getPageText(page.getName(), page.getVersion());
-                        // Insert the version into database
-                        pstmt.setString(1, page.getName());
-                        pstmt.setInt(2, page.getVersion());
-
-                        pstmt.setTimestamp(3, new Timestamp(page.getLastModified().getTime()));
-                        if (page.getAuthor() != null)
-                            pstmt.setString(4, page.getAuthor());
-                        else
-                            pstmt.setString(4, "nobody");
-                        pstmt.setString(5, (String) page.getAttribute(WikiPage.CHANGENOTE));
-                        pstmt.setString(6, text);
-                        pstmt.execute();
-                    }
-
-                }
-                else
-                {
-                    info("Migrating " + latest.getName());
-                    String text = importProvider.getPageText(latest.getName(), latest.getVersion());
-                    // Insert the version into database
-                    pstmt.setString(1, latest.getName());
-                    pstmt.setInt(2, latest.getVersion());
-
-                    pstmt.setTimestamp(3, new Timestamp(latest.getLastModified().getTime()));
-                    if (latest.getAuthor() != null)
-                        pstmt.setString(4, latest.getAuthor());
-                    else
-                        pstmt.setString(4, "nobody");
-                    pstmt.setString(5, (String) latest.getAttribute(WikiPage.CHANGENOTE));
-                    pstmt.setString(6, text);
-                    pstmt.execute();
-                }
-            }
+            new PageMigration(this, importProvider, getConfig().getMigrateThreads(), getConfig().getMigrateBatchSize(),
+                              getConfig().getMigrateCheckpointFile()).run();
         }
         catch (ProviderException e)
         {
@@ -807,6 +2230,10 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
         finally
         {
             m_migrating = false;
+            if (importProvider instanceof JDBCBaseProvider)
+            {
+                ((JDBCBaseProvider) importProvider).shutdown();
+            }
         }
     }
 
@@ -817,7 +2244,17 @@ public class JDBCPageProvider extends JDBCBaseProvider implements WikiPageProvid
 
     public String getSQL(String key)
     {
-        return super.getSQL("page." + key);
+        return super.getSQL(getSQLKey(key));
+    }
+
+    public boolean hasSQL(String key)
+    {
+        return super.hasSQL(getSQLKey(key));
+    }
+
+    protected String getSQLKey(String key)
+    {
+        return "page." + key;
     }
 
 }
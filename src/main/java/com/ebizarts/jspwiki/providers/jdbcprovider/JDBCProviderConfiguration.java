@@ -28,10 +28,17 @@
 
 package com.ebizarts.jspwiki.providers.jdbcprovider;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.apache.wiki.InternalWikiException;
@@ -62,6 +69,23 @@ public class JDBCProviderConfiguration
 
     protected static final Logger log = Logger.getLogger(JDBCProviderConfiguration.class);
 
+    public static final String SEARCH_SCAN = "scan";
+
+    public static final String SEARCH_INDEX = "index";
+
+    public static final String SEARCH_DATABASE = "database";
+
+    public static final String STORAGE_INLINE = "inline";
+
+    public static final String STORAGE_DEDUP = "dedup";
+
+    public static final String HISTORY_FULL = "full";
+
+    public static final String HISTORY_DELTA = "delta";
+
+    private static final String DEFAULT_SKIP_EXTENSIONS = "7z,avi,bz2,docx,flv,gif,gz,jar,jpeg,jpg,mkv,mov,mp3,mp4,odp,"
+                                                          + "ods,odt,ogg,pdf,png,pptx,rar,tgz,war,webm,webp,xlsx,xz,zip";
+
     private Properties config;
     private Properties sql;
     private WikiEngine m_wikiEngine;
@@ -86,7 +110,14 @@ public class JDBCProviderConfiguration
         config = loadProperties(configPath);
 
         setupDbProvider(engine, TextUtil.getRequiredProperty(config, "connectionProvider"));
-        setupSqlQueries(engine, TextUtil.getRequiredProperty(config, "database.flavour"));
+        String dbFlavour = TextUtil.getRequiredProperty(config, "database.flavour");
+        setupSqlQueries(engine, dbFlavour);
+        connectionProvider.setValidationQuery(sql.getProperty("check.connection"));
+        connectionProvider.setStatementCacheSize(TextUtil.getIntegerProperty(config, "statementCacheSize", 50));
+        if (isCreateTablesEnabled())
+        {
+            createTables(dbFlavour);
+        }
 
     }
 
@@ -100,6 +131,31 @@ public class JDBCProviderConfiguration
         connectionProvider.releaseConnection(connection);
     }
 
+    /**
+     * Closes the connection provider, when the wiki shuts down.
+     */
+    public void close()
+    {
+        connectionProvider.close();
+    }
+
+    /**
+     * Prepares a statement through the connection provider's statement cache.
+     */
+    public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException
+    {
+        return connectionProvider.prepareStatement(connection, sql);
+    }
+
+    /**
+     * @return the share of prepared statements served from the statement
+     *         caches, between 0 and 1
+     */
+    public double getStatementCacheHitRate()
+    {
+        return connectionProvider.getStatementCacheHitRate();
+    }
+
     public String getSql(String key)
     {
         return sql.getProperty(key);
@@ -110,11 +166,312 @@ public class JDBCProviderConfiguration
         return TextUtil.getIntegerProperty(config, "continuationEditMinutes", 0) * 60 * 1000;
     }
 
+    /**
+     * @return the maximum number of pages whose latest version info is kept
+     *         in memory, 0 disables the cache
+     */
+    public int getPageInfoCacheSize()
+    {
+        return TextUtil.getIntegerProperty(config, "cache.pageInfoSize", 1000);
+    }
+
+    /**
+     * @return true if missing tables are created on start
+     */
+    public boolean isCreateTablesEnabled()
+    {
+        return TextUtil.getBooleanProperty(config, "database.create", false);
+    }
+
+    /**
+     * @return true if SQL metrics are recorded and published over JMX
+     */
+    public boolean isMetricsEnabled()
+    {
+        return TextUtil.getBooleanProperty(config, "metrics.enabled", false);
+    }
+
+    /**
+     * @return the milliseconds from which a statement is logged as slow, 0
+     *         logs none
+     */
+    public long getSlowQueryThreshold()
+    {
+        return TextUtil.getIntegerProperty(config, "slowQuery.thresholdMillis", 0);
+    }
+
+    /**
+     * @return how the parameters of slow statements are logged: redacted,
+     *         full or none
+     */
+    public String getSlowQueryParameters()
+    {
+        return TextUtil.getStringProperty(config, "slowQuery.parameters", SlowQueryLog.PARAMETERS_REDACTED).trim();
+    }
+
+    /**
+     * @return true if the plan of a slow query is logged with it
+     */
+    public boolean isSlowQueryExplainEnabled()
+    {
+        return TextUtil.getBooleanProperty(config, "slowQuery.explain", false);
+    }
+
+    /**
+     * @return true if the latest version of every page is kept in the
+     *         WIKI_PAGE_LATEST table
+     */
+    public boolean isLatestTableEnabled()
+    {
+        return TextUtil.getBooleanProperty(config, "page.latestTable", false);
+    }
+
+    /**
+     * @return true if the latest version info of all pages is kept in memory
+     */
+    public boolean isPageDirectoryEnabled()
+    {
+        return TextUtil.getBooleanProperty(config, "cache.pageDirectory", true);
+    }
+
+    /**
+     * @return the milliseconds between reads of the pages changed by others
+     */
+    public long getPageDirectoryRefreshInterval()
+    {
+        return TextUtil.getIntegerProperty(config, "cache.pageDirectoryRefreshSeconds", 60) * 1000L;
+    }
+
+    /**
+     * @return the milliseconds between complete reloads of the page
+     *         directory, 0 for never
+     */
+    public long getPageDirectoryReloadInterval()
+    {
+        return TextUtil.getIntegerProperty(config, "cache.pageDirectoryReloadMinutes", 60) * 60 * 1000L;
+    }
+
+    /**
+     * @return the maximum number of pages whose attachment list is kept in
+     *         memory, 0 disables the cache
+     */
+    public int getAttachmentListCacheSize()
+    {
+        return TextUtil.getIntegerProperty(config, "cache.attachmentListSize", 1000);
+    }
+
+    /**
+     * @return the memory budget in bytes for cached texts of older page
+     *         versions, 0 disables the cache
+     */
+    public long getPageVersionCacheSize()
+    {
+        return TextUtil.getIntegerProperty(config, "cache.pageVersionKilobytes", 16384) * 1024L;
+    }
+
+    /**
+     * @return true if page texts are stored compressed
+     */
+    public boolean isPageCompressionEnabled()
+    {
+        return TextUtil.getBooleanProperty(config, "compression.pages", false);
+    }
+
+    /**
+     * @return true if attachment data is stored compressed
+     */
+    public boolean isAttachmentCompressionEnabled()
+    {
+        return TextUtil.getBooleanProperty(config, "compression.attachments", false);
+    }
+
+    /**
+     * @return the size below which values are stored uncompressed
+     */
+    public int getCompressionMinBytes()
+    {
+        return TextUtil.getIntegerProperty(config, "compression.minBytes", 256);
+    }
+
+    /**
+     * @return the lower case file name extensions of attachments that are
+     *         compressed already
+     */
+    public Set<String> getCompressionSkipExtensions()
+    {
+        String extensions = TextUtil.getStringProperty(config, "compression.skipExtensions", DEFAULT_SKIP_EXTENSIONS);
+        Set<String> set = new HashSet<String>();
+        for (String extension : extensions.split("[,\\s]+"))
+        {
+            if (extension.length() > 0)
+            {
+                set.add(extension.toLowerCase(Locale.ROOT));
+            }
+        }
+        return set;
+    }
+
+    /**
+     * @return the directory for local copies of attachments, or null if
+     *         attachments are not cached on disk
+     */
+    public File getAttachmentCacheDirectory()
+    {
+        String directory = TextUtil.getStringProperty(config, "cache.attachmentDirectory", null);
+        return directory == null ? null : new File(directory);
+    }
+
+    /**
+     * @return the disk space in bytes for local copies of attachments
+     */
+    public long getAttachmentCacheSize()
+    {
+        return TextUtil.getIntegerProperty(config, "cache.attachmentMegabytes", 1024) * 1024L * 1024L;
+    }
+
+    /**
+     * @return the number of bytes of an upload kept in memory before it is
+     *         spilled to a temporary file
+     */
+    public int getUploadSpoolThreshold()
+    {
+        return TextUtil.getIntegerProperty(config, "upload.spoolKilobytes", 1024) * 1024;
+    }
+
+    /**
+     * @return the directory for upload spool files, or null for the default
+     *         temporary directory
+     */
+    public File getUploadSpoolDirectory()
+    {
+        String directory = TextUtil.getStringProperty(config, "upload.spoolDirectory", null);
+        return directory == null ? null : new File(directory);
+    }
+
+    /**
+     * @return where attachment data is kept: "inline" in WIKI_ATT, "dedup"
+     *         once per content in WIKI_ATT_BLOB
+     */
+    public String getAttachmentStorage()
+    {
+        return TextUtil.getStringProperty(config, "attachment.storage", STORAGE_INLINE).trim();
+    }
+
+    public boolean isAttachmentDedupEnabled()
+    {
+        return STORAGE_DEDUP.equals(getAttachmentStorage());
+    }
+
+    /**
+     * @return how older page versions are stored: full (default) for a
+     *         complete text per version, delta for reverse deltas against the
+     *         next newer version
+     */
+    public String getHistoryStorage()
+    {
+        return TextUtil.getStringProperty(config, "history.storage", HISTORY_FULL).trim();
+    }
+
+    public boolean isHistoryDeltaEnabled()
+    {
+        return HISTORY_DELTA.equals(getHistoryStorage());
+    }
+
+    /**
+     * @return every how many versions a page version is kept as full text in
+     *         delta mode
+     */
+    public int getHistorySnapshotInterval()
+    {
+        return Math.max(1, TextUtil.getIntegerProperty(config, "history.snapshotInterval", 20));
+    }
+
+    /**
+     * @return the number of pages whose attachments are listed with one
+     *         query by the batch listing
+     */
+    public int getAttachmentListBatchSize()
+    {
+        return Math.max(1, TextUtil.getIntegerProperty(config, "attachment.listBatchSize", 500));
+    }
+
+    /**
+     * @return the fetch size for reading attachment data, 0 for the driver
+     *         default
+     */
+    public int getAttachmentFetchSize()
+    {
+        return TextUtil.getIntegerProperty(config, "attachment.fetchSize", 0);
+    }
+
+    /**
+     * @return how findPages() searches: "scan" reads and matches every page,
+     *         "index" uses the WIKI_PAGE_TERM table, "database" the full-text
+     *         search of the database
+     */
+    public String getSearchMode()
+    {
+        return TextUtil.getStringProperty(config, "search.mode", SEARCH_SCAN).trim();
+    }
+
+    /**
+     * @return the number of threads matching pages in a scan search
+     */
+    public int getSearchThreads()
+    {
+        return TextUtil.getIntegerProperty(config, "search.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return the JDBC fetch size for the scan search cursor, 0 leaves the
+     *         driver default
+     */
+    public int getSearchFetchSize()
+    {
+        return TextUtil.getIntegerProperty(config, "search.fetchSize", 100);
+    }
+
+    public boolean isSearchIndexEnabled()
+    {
+        return SEARCH_INDEX.equals(getSearchMode());
+    }
+
+    public boolean isSearchDatabaseEnabled()
+    {
+        return SEARCH_DATABASE.equals(getSearchMode());
+    }
+
     public String getMigrateFrom()
     {
         return config.getProperty("migrateFromConfiguration");
     }
 
+    /**
+     * @return the number of threads reading pages from the provider migrated
+     *         from
+     */
+    public int getMigrateThreads()
+    {
+        return TextUtil.getIntegerProperty(config, "migrate.threads", 4);
+    }
+
+    /**
+     * @return the number of page versions written per commit when migrating
+     */
+    public int getMigrateBatchSize()
+    {
+        return TextUtil.getIntegerProperty(config, "migrate.batchSize", 500);
+    }
+
+    /**
+     * @return the file where the progress of a page migration is saved
+     */
+    public File getMigrateCheckpointFile()
+    {
+        String file = TextUtil.getStringProperty(config, "migrate.checkpointFile", null);
+        return file != null ? new File(file) : new File(m_wikiEngine.getWorkDir(), "jdbcprovider-migration.checkpoint");
+    }
+
     public boolean hasDesireToMigrate()
     {
         log.debug("Has desire to migrate: " + config.contains("migrateFromConfiguration"));
@@ -150,10 +507,166 @@ public class JDBCProviderConfiguration
 
     private void setupSqlQueries(WikiEngine engine, final String dbFlavour) throws IOException
     {
-        sql = loadProperties("jdbcprovider." + dbFlavour + ".properties");
+        String name = "jdbcprovider." + dbFlavour + ".properties";
+        try
+        {
+            sql = loadProperties(name);
+        }
+        catch (IOException e)
+        {
+            // fall back to the flavour file packaged with the provider
+            InputStream packaged = JDBCProviderConfiguration.class.getResourceAsStream(name);
+            if (packaged == null)
+            {
+                throw e;
+            }
+            log.info("Using the packaged " + name);
+            sql = new Properties();
+            try
+            {
+                sql.load(packaged);
+            }
+            finally
+            {
+                packaged.close();
+            }
+        }
         log.debug("queries: " + sql.toString());
     }
 
+    /**
+     * Creates the tables with the statements of create_tables_&lt;flavour&gt;.sql
+     * if WIKI_PAGE does not exist yet. The script is looked up like the
+     * flavour file, then in the provider's jar. Statements end with a
+     * semicolon at the end of a line; one that fails is logged and the rest
+     * are run anyway, so a script can include optional statements.
+     *
+     * @throws IOException
+     *             if the script is not found, or the tables still cannot be
+     *             read afterwards
+     */
+    private void createTables(final String dbFlavour) throws IOException
+    {
+        Connection connection = null;
+        try
+        {
+            connection = getConnection();
+            if (isQueryOK(connection, sql.getProperty("check.wiki_page")))
+            {
+                return;
+            }
+            String name = "create_tables_" + dbFlavour + ".sql";
+            log.info("Creating the tables with " + name);
+            Statement stmt = connection.createStatement();
+            try
+            {
+                for (String statement : loadScript(name).split(";[ \\t]*(\\r?\\n|$)"))
+                {
+                    statement = statement.replaceAll("(?m)^\\s*--.*$", "").trim();
+                    if (statement.length() == 0)
+                    {
+                        continue;
+                    }
+                    try
+                    {
+                        stmt.execute(statement);
+                    }
+                    catch (SQLException se)
+                    {
+                        log.warn("Statement failed, continuing: " + statement, se);
+                    }
+                }
+            }
+            finally
+            {
+                stmt.close();
+            }
+            if (!connection.getAutoCommit())
+            {
+                connection.commit();
+            }
+            if (!isQueryOK(connection, sql.getProperty("check.wiki_page"))
+                || !isQueryOK(connection, sql.getProperty("check.wiki_attachments")))
+            {
+                throw new IOException("The tables could not be created with " + name);
+            }
+        }
+        catch (SQLException se)
+        {
+            log.error("Unable to create the tables", se);
+            throw new IOException("Unable to create the tables: " + se.getMessage());
+        }
+        finally
+        {
+            if (connection != null)
+            {
+                releaseConnection(connection);
+            }
+        }
+    }
+
+    private static boolean isQueryOK(Connection connection, String query)
+    {
+        try
+        {
+            Statement stmt = connection.createStatement();
+            try
+            {
+                stmt.executeQuery(query).close();
+            }
+            finally
+            {
+                stmt.close();
+            }
+            return true;
+        }
+        catch (SQLException se)
+        {
+            return false;
+        }
+    }
+
+    private String loadScript(String name) throws IOException
+    {
+        File f = findFile(name);
+        InputStream in = f != null ? new java.io.FileInputStream(f)
+                                   : JDBCProviderConfiguration.class.getResourceAsStream(name);
+        if (in == null)
+        {
+            throw new IOException("JDBCProvider table script not found: " + name);
+        }
+        try
+        {
+            java.io.Reader reader = new java.io.InputStreamReader(in, "UTF-8");
+            StringBuilder script = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) != -1)
+            {
+                script.append(buffer, 0, n);
+            }
+            return script.toString();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the file at the path, or in &lt;JSPWiki_APP_BASE&gt;/WEB-INF, or
+     *         null if it is in neither
+     */
+    private File findFile(String path)
+    {
+        File f = new File(path);
+        if (!f.exists())
+        {
+            f = new File(m_wikiEngine.getRootPath() + "WEB-INF" + System.getProperty("file.separator") + path);
+        }
+        return f.exists() ? f : null;
+    }
+
     private Properties loadProperties(String path) throws IOException
     {
         Properties p = new Properties();
@@ -0,0 +1,271 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.wiki.WikiPage;
+
+/**
+ * The latest version info of every page, held in memory. The directory is
+ * loaded once with all pages and then kept current in two ways: this
+ * provider's own saves, deletes and moves are applied as they happen, and the
+ * pages changed by other wiki instances are merged in by a periodic refresh
+ * that reads only the pages changed since the previous refresh.
+ * <p>
+ * A refresh cannot see pages that were deleted elsewhere, so the directory is
+ * reloaded completely at a longer interval. A reload builds a new map that
+ * replaces the old one at once, so readers never see a partial directory.
+ * Local saves made while the directory is being read are applied again on top
+ * of the read; a local delete made meanwhile could be undone by the read, so
+ * the directory is reloaded after one as well.
+ */
+public class PageDirectory
+{
+
+    /**
+     * How far back a refresh looks beyond the previous one, for saves that
+     * were committed late or stamped by a clock that is behind.
+     */
+    private static final long REFRESH_OVERLAP = 60 * 1000L;
+
+    private volatile ConcurrentHashMap<String, WikiPage> pages = new ConcurrentHashMap<String, WikiPage>();
+
+    /** Local saves by page name, kept until no read can have missed them. */
+    private final Map<String, LocalPut> puts = new HashMap<String, LocalPut>();
+
+    private final long refreshInterval;
+
+    private final long reloadInterval;
+
+    private volatile boolean loaded;
+
+    private volatile long loadedAt;
+
+    private volatile long refreshedAt;
+
+    /** Counts local removals, to detect those made during a read. */
+    private volatile long removals;
+
+    /**
+     * @param refreshInterval
+     *            milliseconds between reads of the changed pages
+     * @param reloadInterval
+     *            milliseconds between complete reloads, 0 for never
+     */
+    public PageDirectory(long refreshInterval, long reloadInterval)
+    {
+        this.refreshInterval = refreshInterval;
+        this.reloadInterval = reloadInterval;
+    }
+
+    public boolean needsReload(long now)
+    {
+        return !loaded || (reloadInterval > 0 && now - loadedAt >= reloadInterval);
+    }
+
+    public boolean needsRefresh(long now)
+    {
+        return now - refreshedAt >= refreshInterval;
+    }
+
+    /**
+     * @return the time from which changed pages have to be read
+     */
+    public Date getRefreshFrom()
+    {
+        return new Date(refreshedAt - REFRESH_OVERLAP);
+    }
+
+    /**
+     * @return the current removal count, to be passed to {@link #load} or
+     *         {@link #merge} after reading
+     */
+    public long getRemovals()
+    {
+        return removals;
+    }
+
+    /**
+     * Replaces the directory with a complete read of all pages.
+     *
+     * @param startedAt
+     *            the time the read was started
+     * @param removalsBefore
+     *            the removal count before the read was started
+     */
+    public synchronized void load(Collection<WikiPage> all, long startedAt, long removalsBefore)
+    {
+        ConcurrentHashMap<String, WikiPage> read = new ConcurrentHashMap<String, WikiPage>();
+        for (WikiPage page : all)
+        {
+            read.put(page.getName(), page);
+        }
+        for (LocalPut put : puts.values())
+        {
+            if (put.at >= startedAt)
+            {
+                mergePage(read, put.page);
+            }
+        }
+        pages = read;
+        forgetPuts(startedAt);
+        loadedAt = startedAt;
+        refreshedAt = startedAt;
+        loaded = removals == removalsBefore;
+    }
+
+    /**
+     * Merges the pages read by a refresh; an entry is only replaced by a
+     * newer version or a later save of the same version.
+     */
+    public synchronized void merge(Collection<WikiPage> changed, long startedAt, long removalsBefore)
+    {
+        for (WikiPage page : changed)
+        {
+            mergePage(pages, page);
+        }
+        forgetPuts(startedAt);
+        refreshedAt = startedAt;
+        if (removals != removalsBefore)
+        {
+            loaded = false;
+        }
+    }
+
+    private static void mergePage(Map<String, WikiPage> map, WikiPage page)
+    {
+        WikiPage known = map.get(page.getName());
+        if (known == null || known.getVersion() < page.getVersion()
+            || (known.getVersion() == page.getVersion() && !page.getLastModified().before(known.getLastModified())))
+        {
+            map.put(page.getName(), page);
+        }
+    }
+
+    /**
+     * Drops the local saves made before a read started; later reads see them
+     * in the database.
+     */
+    private void forgetPuts(long startedAt)
+    {
+        for (Iterator<LocalPut> it = puts.values().iterator(); it.hasNext();)
+        {
+            if (it.next().at < startedAt)
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Records the latest version of a page as saved by this provider.
+     */
+    public synchronized void put(WikiPage page)
+    {
+        pages.put(page.getName(), page);
+        puts.put(page.getName(), new LocalPut(page, System.currentTimeMillis()));
+    }
+
+    /**
+     * Records a page deleted by this provider.
+     */
+    public synchronized void remove(String pageName)
+    {
+        removals++;
+        pages.remove(pageName);
+        puts.remove(pageName);
+    }
+
+    /**
+     * Forces a complete reload on the next access.
+     */
+    public void invalidate()
+    {
+        loaded = false;
+    }
+
+    public boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * @return true once the directory has been read at least once
+     */
+    public boolean hasLoaded()
+    {
+        return loadedAt > 0;
+    }
+
+    /**
+     * @return copies of the latest version info of all pages
+     */
+    public List<WikiPage> getAll()
+    {
+        Map<String, WikiPage> current = pages;
+        List<WikiPage> all = new ArrayList<WikiPage>(current.size());
+        for (WikiPage page : current.values())
+        {
+            all.add((WikiPage) page.clone());
+        }
+        return all;
+    }
+
+    public int size()
+    {
+        return pages.size();
+    }
+
+    public String toString()
+    {
+        return "pages=" + size() + ", loaded=" + loaded;
+    }
+
+    private static class LocalPut
+    {
+        final WikiPage page;
+
+        final long at;
+
+        LocalPut(WikiPage page, long at)
+        {
+            this.page = page;
+            this.at = at;
+        }
+    }
+
+}
@@ -0,0 +1,424 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.api.exceptions.ProviderException;
+import org.apache.wiki.providers.WikiPageProvider;
+
+/**
+ * Copies all pages with all their versions from another page provider into
+ * the WIKI_PAGE table.
+ * <p>
+ * The pages are copied in order of their names. A pool of threads reads
+ * them from the source provider a few pages ahead, while the calling thread
+ * writes them with batched inserts, committing after every batch of about
+ * the given number of versions. A batch always holds complete pages.
+ * <p>
+ * Progress is saved in a checkpoint file, created before anything is written
+ * and updated with the name of the last page after each commit. An
+ * interrupted migration resumes after that page, even though WIKI_PAGE is no
+ * longer empty. The versions of the first batch after resuming are deleted
+ * before they are inserted, in case they were committed just before the
+ * interruption but after the checkpoint was saved. The checkpoint file is
+ * removed once all pages are copied.
+ */
+public class PageMigration
+{
+
+    protected static final Logger log = Logger.getLogger(PageMigration.class);
+
+    private static final long PROGRESS_INTERVAL = 30 * 1000L;
+
+    /** Pages read ahead per reader thread. */
+    private static final int READ_AHEAD = 4;
+
+    private final JDBCPageProvider provider;
+
+    private final WikiPageProvider source;
+
+    private final int threads;
+
+    private final int batchSize;
+
+    private final File checkpointFile;
+
+    private int pages;
+
+    private long versions;
+
+    private String lastPage;
+
+    /**
+     * @param threads
+     *            the number of threads reading from the source
+     * @param batchSize
+     *            the number of versions written per commit
+     * @param checkpointFile
+     *            where the progress is saved
+     */
+    public PageMigration(JDBCPageProvider provider, WikiPageProvider source, int threads, int batchSize,
+                         File checkpointFile)
+    {
+        this.provider = provider;
+        this.source = source;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * @return true if an interrupted migration can be resumed
+     */
+    public static boolean isResumable(File checkpointFile)
+    {
+        return checkpointFile.exists();
+    }
+
+    @SuppressWarnings("unchecked")
+    public void run() throws ProviderException, SQLException, IOException
+    {
+        Map<String, WikiPage> latest = new HashMap<String, WikiPage>();
+        for (WikiPage page : (Collection<WikiPage>) source.getAllPages())
+        {
+            latest.put(page.getName(), page);
+        }
+        List<String> names = new ArrayList<String>(latest.keySet());
+        Collections.sort(names);
+
+        boolean resuming = loadCheckpoint();
+        int next = 0;
+        if (lastPage != null)
+        {
+            int found = Collections.binarySearch(names, lastPage);
+            next = found >= 0 ? found + 1 : -found - 1;
+            log.info("Resuming the migration after page " + lastPage + ", " + pages + " pages were migrated");
+        }
+        else if (resuming)
+        {
+            log.info("Restarting the migration, no pages were migrated");
+        }
+        else
+        {
+            // from now on, rows in WIKI_PAGE belong to this migration
+            saveCheckpoint();
+        }
+        log.info("Migrating " + (names.size() - next) + " of " + names.size() + " pages with " + threads
+                 + " reader threads");
+
+        ExecutorService readers = Executors.newFixedThreadPool(threads, new ReaderThreadFactory());
+        LinkedList<Future<SourcePage>> pending = new LinkedList<Future<SourcePage>>();
+        Connection con = null;
+        PreparedStatement insert = null;
+        PreparedStatement delete = null;
+        boolean autoCommit = true;
+        long started = System.currentTimeMillis();
+        long reported = started;
+        int startPages = pages;
+        try
+        {
+            con = provider.getConnection();
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            insert = provider.prepareStatement(con, "insertPage", provider.getSQL("insertPage"));
+            if (resuming)
+            {
+                delete = provider.prepareStatement(con, "delete", provider.getSQL("delete"));
+            }
+            int rows = 0;
+            while (next < names.size() || !pending.isEmpty())
+            {
+                while (next < names.size() && pending.size() < threads * READ_AHEAD)
+                {
+                    pending.add(readers.submit(new Reader(latest.get(names.get(next++)))));
+                }
+                SourcePage page = take(pending.removeFirst());
+                if (delete != null)
+                {
+                    delete.setString(1, page.name);
+                    delete.addBatch();
+                }
+                for (int i = 0; i < page.versions.size(); i++)
+                {
+                    addVersion(insert, page.versions.get(i), page.texts.get(i));
+                    rows++;
+                }
+                lastPage = page.name;
+                pages++;
+                versions += page.versions.size();
+                if (rows >= batchSize)
+                {
+                    commit(con, delete, insert);
+                    if (delete != null)
+                    {
+                        delete.close();
+                        delete = null;
+                    }
+                    rows = 0;
+                }
+                long now = System.currentTimeMillis();
+                if (now - reported >= PROGRESS_INTERVAL)
+                {
+                    reportProgress(names.size(), pages - startPages, now - started);
+                    reported = now;
+                }
+            }
+            commit(con, delete, insert);
+            log.info("Migrated " + pages + " pages with " + versions + " versions in "
+                     + (System.currentTimeMillis() - started) / 1000 + " s");
+            if (!checkpointFile.delete() && checkpointFile.exists())
+            {
+                log.warn("Unable to delete the migration checkpoint " + checkpointFile);
+            }
+        }
+        catch (SQLException se)
+        {
+            provider.rollback(con);
+            throw se;
+        }
+        finally
+        {
+            readers.shutdownNow();
+            if (delete != null)
+            {
+                provider.closeStatement(null, delete);
+            }
+            provider.restoreAutoCommit(con, autoCommit);
+            provider.releaseConnection(insert, con);
+        }
+    }
+
+    private void addVersion(PreparedStatement insert, WikiPage page, String text) throws SQLException
+    {
+        Date modified = page.getLastModified() != null ? page.getLastModified() : new Date();
+        insert.setString(1, page.getName());
+        insert.setInt(2, page.getVersion());
+        insert.setTimestamp(3, new Timestamp(modified.getTime()));
+        insert.setString(4, page.getAuthor() != null ? page.getAuthor() : "nobody");
+        insert.setString(5, (String) page.getAttribute(WikiPage.CHANGENOTE));
+        insert.setString(6, text);
+        insert.addBatch();
+    }
+
+    private void commit(Connection con, PreparedStatement delete, PreparedStatement insert)
+        throws SQLException, IOException
+    {
+        if (delete != null)
+        {
+            delete.executeBatch();
+        }
+        insert.executeBatch();
+        con.commit();
+        saveCheckpoint();
+    }
+
+    private void reportProgress(int total, int done, long elapsed)
+    {
+        long rate = done * 1000L / Math.max(1, elapsed);
+        StringBuilder message = new StringBuilder("Migrated ").append(pages).append(" of ").append(total)
+            .append(" pages (").append(versions).append(" versions), ").append(rate).append(" pages/s");
+        if (rate > 0)
+        {
+            message.append(", about ").append((total - pages) / rate).append(" s left");
+        }
+        log.info(message);
+    }
+
+    private static SourcePage take(Future<SourcePage> future) throws ProviderException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ProviderException("Migration interrupted");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof ProviderException)
+            {
+                throw (ProviderException) e.getCause();
+            }
+            throw new ProviderException("Reading a page to migrate failed: " + e.getCause());
+        }
+    }
+
+    private boolean loadCheckpoint() throws IOException
+    {
+        if (!checkpointFile.exists())
+        {
+            return false;
+        }
+        Properties checkpoint = new Properties();
+        InputStream in = new FileInputStream(checkpointFile);
+        try
+        {
+            checkpoint.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        lastPage = checkpoint.getProperty("lastPage");
+        pages = Integer.parseInt(checkpoint.getProperty("pages", "0"));
+        versions = Long.parseLong(checkpoint.getProperty("versions", "0"));
+        return true;
+    }
+
+    /**
+     * Saves the progress to a new file that then replaces the checkpoint, so
+     * a crash never leaves a partly written checkpoint.
+     */
+    private void saveCheckpoint() throws IOException
+    {
+        Properties checkpoint = new Properties();
+        if (lastPage != null)
+        {
+            checkpoint.setProperty("lastPage", lastPage);
+        }
+        checkpoint.setProperty("pages", String.valueOf(pages));
+        checkpoint.setProperty("versions", String.valueOf(versions));
+        File parent = checkpointFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+        {
+            parent.mkdirs();
+        }
+        File written = new File(checkpointFile.getPath() + ".new");
+        OutputStream out = new FileOutputStream(written);
+        try
+        {
+            checkpoint.store(out, "JDBCPageProvider migration, committed up to and including lastPage");
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!written.renameTo(checkpointFile))
+        {
+            // not atomic, but rename does not replace files everywhere
+            checkpointFile.delete();
+            if (!written.renameTo(checkpointFile))
+            {
+                throw new IOException("Unable to write the migration checkpoint " + checkpointFile);
+            }
+        }
+    }
+
+    /**
+     * All versions of a page with their texts, in the form to be stored.
+     */
+    private static class SourcePage
+    {
+        private final String name;
+
+        private final List<WikiPage> versions;
+
+        private final List<String> texts;
+
+        SourcePage(String name, List<WikiPage> versions, List<String> texts)
+        {
+            this.name = name;
+            this.versions = versions;
+            this.texts = texts;
+        }
+    }
+
+    /**
+     * Reads all versions of a page from the source provider.
+     */
+    private class Reader implements Callable<SourcePage>
+    {
+        private final WikiPage latest;
+
+        Reader(WikiPage latest)
+        {
+            this.latest = latest;
+        }
+
+        @SuppressWarnings("unchecked")
+        public SourcePage call() throws ProviderException
+        {
+            List<WikiPage> history = source.getVersionHistory(latest.getName());
+            if (history == null || history.isEmpty())
+            {
+                history = Collections.singletonList(latest);
+            }
+            List<String> texts = new ArrayList<String>(history.size());
+            for (WikiPage page : history)
+            {
+                texts.add(provider.encode(source.getPageText(page.getName(), page.getVersion())));
+            }
+            return new SourcePage(latest.getName(), history, texts);
+        }
+    }
+
+    private static class ReaderThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "JDBCPageProvider-migration-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
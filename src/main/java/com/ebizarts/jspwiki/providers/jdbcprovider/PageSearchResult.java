@@ -0,0 +1,68 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import org.apache.wiki.WikiPage;
+import org.apache.wiki.search.SearchResult;
+
+/**
+ * A search hit found through the database rather than by matching the page
+ * text in memory, so there are no text contexts to show.
+ */
+public class PageSearchResult implements SearchResult
+{
+
+    private static final String[] NO_CONTEXTS = new String[0];
+
+    private final WikiPage page;
+
+    private final int score;
+
+    public PageSearchResult(WikiPage page, int score)
+    {
+        this.page = page;
+        this.score = score;
+    }
+
+    public WikiPage getPage()
+    {
+        return page;
+    }
+
+    public int getScore()
+    {
+        return score;
+    }
+
+    public String[] getContexts()
+    {
+        return NO_CONTEXTS;
+    }
+
+}
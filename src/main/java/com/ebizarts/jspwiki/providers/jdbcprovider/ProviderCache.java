@@ -0,0 +1,177 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small, size-bounded, thread safe LRU cache used by the providers to avoid
+ * database round trips for frequently requested data. A cache created with a
+ * maximum size of 0 is disabled: nothing is stored and every lookup is a miss.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+public class ProviderCache<K, V>
+{
+
+    private final int maxEntries;
+
+    private final Map<K, V> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries
+     *            the maximum number of entries kept; 0 disables the cache
+     */
+    public ProviderCache(final int maxEntries)
+    {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > ProviderCache.this.maxEntries;
+            }
+        };
+    }
+
+    public boolean isEnabled()
+    {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @return the cached value, or null if the key is not cached
+     */
+    public V get(K key)
+    {
+        if (!isEnabled())
+        {
+            return null;
+        }
+        V value;
+        synchronized (entries)
+        {
+            value = entries.get(key);
+        }
+        if (value == null)
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value)
+    {
+        if (!isEnabled() || value == null)
+        {
+            return;
+        }
+        synchronized (entries)
+        {
+            entries.put(key, value);
+        }
+    }
+
+    public void remove(K key)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        synchronized (entries)
+        {
+            entries.remove(key);
+        }
+    }
+
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return a snapshot of the currently cached keys
+     */
+    public List<K> keys()
+    {
+        synchronized (entries)
+        {
+            return new ArrayList<K>(entries.keySet());
+        }
+    }
+
+    public int size()
+    {
+        synchronized (entries)
+        {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize()
+    {
+        return maxEntries;
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public String toString()
+    {
+        return "size=" + size() + "/" + maxEntries + ", hits=" + getHitCount() + ", misses=" + getMissCount();
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A binary column streamed straight from the result set it was read from. The
+ * result set, its statement and the connection stay open until the stream is
+ * closed or read to its end, so the caller must do one or the other. A stream
+ * that is dropped without either is released when it is garbage collected,
+ * and the leak is logged.
+ */
+public class ResultSetInputStream extends FilterInputStream
+{
+
+    protected static final Logger log = Logger.getLogger(ResultSetInputStream.class);
+
+    private final JDBCBaseProvider provider;
+
+    private ResultSet rs;
+
+    private Statement stmt;
+
+    private Connection con;
+
+    private final String description;
+
+    private final Throwable openedAt;
+
+    /**
+     * @param data
+     *            the column stream, read from the result set
+     * @param description
+     *            what is being read, for the leak warning
+     */
+    public ResultSetInputStream(JDBCBaseProvider provider, ResultSet rs, Statement stmt, Connection con,
+                                InputStream data, String description)
+    {
+        super(data);
+        this.provider = provider;
+        this.rs = rs;
+        this.stmt = stmt;
+        this.con = con;
+        this.description = description;
+        // the stack trace is only worth its cost when someone looks at it
+        this.openedAt = log.isDebugEnabled() ? new Throwable("Stream opened here") : null;
+    }
+
+    public int read() throws IOException
+    {
+        if (!isOpen())
+        {
+            return -1;
+        }
+        int b = super.read();
+        if (b == -1)
+        {
+            release();
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (!isOpen())
+        {
+            return -1;
+        }
+        int n = super.read(b, off, len);
+        if (n == -1)
+        {
+            release();
+        }
+        return n;
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            super.close();
+        }
+        finally
+        {
+            release();
+        }
+    }
+
+    /**
+     * @return true until the database resources have been released
+     */
+    public synchronized boolean isOpen()
+    {
+        return con != null;
+    }
+
+    private synchronized void release()
+    {
+        if (con != null)
+        {
+            provider.releaseConnection(rs, stmt, con);
+            rs = null;
+            stmt = null;
+            con = null;
+        }
+    }
+
+    protected void finalize() throws Throwable
+    {
+        try
+        {
+            if (isOpen())
+            {
+                log.warn("Stream of " + description + " was never closed, releasing its connection", openedAt);
+                release();
+            }
+        }
+        finally
+        {
+            super.finalize();
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.suigeneris.jrcs.diff.Diff;
+import org.suigeneris.jrcs.diff.DiffException;
+import org.suigeneris.jrcs.diff.Revision;
+import org.suigeneris.jrcs.diff.delta.Chunk;
+import org.suigeneris.jrcs.diff.delta.Delta;
+
+/**
+ * Stores an older page version as the line edits that turn the next newer
+ * version back into it. A delta is a text of its own, marked like this:
+ *
+ * <pre>
+ * &lt;DEL&gt;delta:
+ * =12      copy 12 lines of the newer text
+ * -3       skip 3 lines of the newer text
+ * +57      insert the 57 characters that follow
+ * </pre>
+ *
+ * Lines keep their line ends, so texts are restored exactly, including the
+ * last line with or without a line end. Lines of the newer text that are left
+ * after the last edit are copied.
+ * <p>
+ * A full text that happens to start with a marker is stored escaped, so it is
+ * not mistaken for a delta.
+ */
+public class ReverseDelta
+{
+
+    protected static final Logger log = Logger.getLogger(ReverseDelta.class);
+
+    /** Starts a delta; DEL does not start real wiki text. */
+    public static final String MARKER = "\u007Fdelta:\n";
+
+    /** Starts a full text that would otherwise start with a marker. */
+    public static final String ESCAPE = "\u007Fplain:\n";
+
+    private ReverseDelta()
+    {
+    }
+
+    /**
+     * @return true if the stored text is a delta rather than a full text
+     */
+    public static boolean isDelta(String stored)
+    {
+        return stored != null && stored.startsWith(MARKER);
+    }
+
+    /**
+     * @return the full text in the form to be stored
+     */
+    public static String escape(String text)
+    {
+        if (text != null && (text.startsWith(MARKER) || text.startsWith(ESCAPE)))
+        {
+            return ESCAPE + text;
+        }
+        return text;
+    }
+
+    /**
+     * @return the full text from its stored form; must not be a delta
+     */
+    public static String unescape(String stored)
+    {
+        if (stored != null && stored.startsWith(ESCAPE))
+        {
+            return stored.substring(ESCAPE.length());
+        }
+        return stored;
+    }
+
+    /**
+     * @return the delta that restores the older text from the newer one, or
+     *         null if the delta would not be smaller than the older text
+     */
+    public static String create(String newer, String older)
+    {
+        if (newer == null || older == null)
+        {
+            return null;
+        }
+        String[] newerLines = lines(newer);
+        Revision revision;
+        try
+        {
+            revision = Diff.diff(newerLines, lines(older));
+        }
+        catch (DiffException e)
+        {
+            log.warn("Unable to compute page delta, keeping the full text", e);
+            return null;
+        }
+        StringBuilder delta = new StringBuilder(MARKER);
+        int position = 0;
+        for (int i = 0; i < revision.size() && delta.length() < older.length(); i++)
+        {
+            Delta edit = revision.getDelta(i);
+            Chunk original = edit.getOriginal();
+            Chunk revised = edit.getRevised();
+            if (original.first() > position)
+            {
+                delta.append('=').append(original.first() - position).append('\n');
+            }
+            if (original.size() > 0)
+            {
+                delta.append('-').append(original.size()).append('\n');
+            }
+            if (revised.size() > 0)
+            {
+                StringBuilder inserted = new StringBuilder();
+                for (Object line : revised.chunk())
+                {
+                    inserted.append(line);
+                }
+                delta.append('+').append(inserted.length()).append('\n').append(inserted);
+            }
+            position = original.first() + original.size();
+        }
+        return delta.length() < older.length() ? delta.toString() : null;
+    }
+
+    /**
+     * @return the older text restored from the newer text and its delta
+     * @throws IOException
+     *             if the delta does not fit the newer text
+     */
+    public static String apply(String newer, String delta) throws IOException
+    {
+        if (!isDelta(delta))
+        {
+            throw new IOException("Not a page delta");
+        }
+        String[] newerLines = lines(newer);
+        StringBuilder older = new StringBuilder(newer.length());
+        int position = 0;
+        int i = MARKER.length();
+        try
+        {
+            while (i < delta.length())
+            {
+                char op = delta.charAt(i);
+                int end = delta.indexOf('\n', i);
+                if (end < 0)
+                {
+                    throw new IOException("Truncated page delta");
+                }
+                int count = Integer.parseInt(delta.substring(i + 1, end));
+                i = end + 1;
+                if (op == '=')
+                {
+                    for (int n = 0; n < count; n++)
+                    {
+                        older.append(newerLines[position++]);
+                    }
+                }
+                else if (op == '-')
+                {
+                    position += count;
+                }
+                else if (op == '+')
+                {
+                    older.append(delta, i, i + count);
+                    i += count;
+                }
+                else
+                {
+                    throw new IOException("Invalid page delta operation '" + op + "'");
+                }
+            }
+            while (position < newerLines.length)
+            {
+                older.append(newerLines[position++]);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid page delta: " + e.getMessage());
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            throw new IOException("Page delta does not fit the newer version");
+        }
+        return older.toString();
+    }
+
+    /**
+     * @return the lines of the text, each with its line end
+     */
+    private static String[] lines(String text)
+    {
+        List<String> lines = new ArrayList<String>();
+        int start = 0;
+        while (start < text.length())
+        {
+            int end = text.indexOf('\n', start);
+            end = end < 0 ? text.length() : end + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.wiki.search.QueryItem;
+
+/**
+ * Splits text into the lower case terms stored in the search index tables and
+ * resolves JSPWiki search queries against such an index.
+ * <p>
+ * A query word is split like any other text, and all of its terms must match.
+ * Required words must all match, forbidden words must not match, and requested
+ * words add to the score. If a query has no required words, at least one of the
+ * requested words must match.
+ */
+public abstract class SearchTerms
+{
+
+    /** Terms shorter than this are not indexed. */
+    public static final int MIN_TERM_LENGTH = 2;
+
+    /** Terms longer than this are not indexed; matches the TERM columns. */
+    public static final int MAX_TERM_LENGTH = 50;
+
+    /**
+     * Looks up the documents containing a term.
+     *
+     * @return the matching documents mapped to the term frequency
+     */
+    protected abstract Map<String, Integer> lookup(String term) throws SQLException;
+
+    /**
+     * @return the documents matching the query, mapped to their score
+     */
+    public Map<String, Integer> resolve(QueryItem[] query) throws SQLException
+    {
+        Map<String, Integer> required = null;
+        Map<String, Integer> requested = new HashMap<String, Integer>();
+        List<Map<String, Integer>> forbidden = new ArrayList<Map<String, Integer>>();
+
+        for (int i = 0; i < query.length; i++)
+        {
+            Map<String, Integer> matches = matchWord(query[i].word);
+            if (matches == null)
+            {
+                continue; // nothing indexable in this word
+            }
+            if (query[i].type == QueryItem.REQUIRED)
+            {
+                required = (required == null) ? matches : intersect(required, matches);
+            }
+            else if (query[i].type == QueryItem.FORBIDDEN)
+            {
+                forbidden.add(matches);
+            }
+            else
+            {
+                add(requested, matches);
+            }
+        }
+
+        Map<String, Integer> result;
+        if (required != null)
+        {
+            result = required;
+            for (Map.Entry<String, Integer> e : requested.entrySet())
+            {
+                Integer score = result.get(e.getKey());
+                if (score != null)
+                {
+                    result.put(e.getKey(), score.intValue() + e.getValue().intValue());
+                }
+            }
+        }
+        else
+        {
+            result = requested;
+        }
+        for (Map<String, Integer> f : forbidden)
+        {
+            result.keySet().removeAll(f.keySet());
+        }
+        return result;
+    }
+
+    /**
+     * @return the documents containing all terms of the word, or null if the
+     *         word has no indexable terms
+     */
+    private Map<String, Integer> matchWord(String word) throws SQLException
+    {
+        Map<String, Integer> matches = null;
+        for (String term : split(word))
+        {
+            Map<String, Integer> found = new HashMap<String, Integer>(lookup(term));
+            matches = (matches == null) ? found : intersect(matches, found);
+        }
+        return matches;
+    }
+
+    private static Map<String, Integer> intersect(Map<String, Integer> a, Map<String, Integer> b)
+    {
+        for (Iterator<Map.Entry<String, Integer>> it = a.entrySet().iterator(); it.hasNext();)
+        {
+            Map.Entry<String, Integer> e = it.next();
+            Integer other = b.get(e.getKey());
+            if (other == null)
+            {
+                it.remove();
+            }
+            else
+            {
+                e.setValue(e.getValue().intValue() + other.intValue());
+            }
+        }
+        return a;
+    }
+
+    private static void add(Map<String, Integer> sum, Map<String, Integer> matches)
+    {
+        for (Map.Entry<String, Integer> e : matches.entrySet())
+        {
+            Integer score = sum.get(e.getKey());
+            sum.put(e.getKey(), (score == null ? 0 : score.intValue()) + e.getValue().intValue());
+        }
+    }
+
+    /**
+     * Splits text into indexable lower case terms, in order of appearance.
+     */
+    public static List<String> split(String text)
+    {
+        List<String> terms = new ArrayList<String>();
+        if (text == null)
+        {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0)
+            {
+                start = i;
+            }
+            else if (!letter && start >= 0)
+            {
+                int length = i - start;
+                if (length >= MIN_TERM_LENGTH && length <= MAX_TERM_LENGTH)
+                {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * @return the indexable terms of the text mapped to their frequency
+     */
+    public static Map<String, Integer> count(String text)
+    {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String term : split(text))
+        {
+            Integer n = counts.get(term);
+            counts.put(term, n == null ? 1 : n.intValue() + 1);
+        }
+        return counts;
+    }
+
+}
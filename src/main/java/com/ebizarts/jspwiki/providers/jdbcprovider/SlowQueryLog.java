@@ -0,0 +1,484 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Logs the statements that take longer than a threshold, with their SQL key,
+ * duration, row count and bound parameters, and optionally the plan of a
+ * slow query.
+ * <p>
+ * The duration of a query runs from its execution to the last row read, so
+ * it includes fetching the rows but not streaming the data of the last row.
+ * The row count of an update is its update count. Parameters are logged:
+ * <ul>
+ * <li>{@link #PARAMETERS_REDACTED}: numbers, dates and nulls as they are, texts
+ * by their length only. Page names, author names and page texts stay out of
+ * the log.</li>
+ * <li>{@link #PARAMETERS_FULL}: texts as well, cut off after
+ * {@value #MAX_TEXT} characters.</li>
+ * <li>{@link #PARAMETERS_NONE}: not at all.</li>
+ * </ul>
+ * Binary data is always logged by its length.
+ * <p>
+ * The plan is read with the flavour's <code>explain</code> statement. If it
+ * contains <code>{0}</code>, that is replaced by the SQL of the slow query and
+ * the query's parameters are bound to it; otherwise the SQL text is bound as
+ * its only parameter. Only queries are explained, and each key at most once
+ * every {@value #EXPLAIN_INTERVAL_MINUTES} minutes.
+ */
+public class SlowQueryLog
+{
+
+    protected static final Logger log = Logger.getLogger(SlowQueryLog.class);
+
+    public static final String PARAMETERS_REDACTED = "redacted";
+
+    public static final String PARAMETERS_FULL = "full";
+
+    public static final String PARAMETERS_NONE = "none";
+
+    private static final int MAX_TEXT = 100;
+
+    private static final int EXPLAIN_INTERVAL_MINUTES = 10;
+
+    private final long thresholdNanos;
+
+    private final String parameters;
+
+    private final String explainSql;
+
+    private final ConcurrentHashMap<String, Long> explainedAt = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * @param thresholdMillis
+     *            the duration from which a statement is logged
+     * @param parameters
+     *            how parameters are logged: redacted, full or none
+     * @param explainSql
+     *            the flavour's explain statement, or null to log no plans
+     */
+    public SlowQueryLog(long thresholdMillis, String parameters, String explainSql)
+    {
+        this.thresholdNanos = thresholdMillis * 1000000L;
+        this.parameters = parameters;
+        this.explainSql = explainSql;
+    }
+
+    /**
+     * @return the statement, logged under the key if it is slow
+     */
+    public PreparedStatement watch(PreparedStatement stmt, String key, String sql)
+    {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                          new Class<?>[] { PreparedStatement.class },
+                                                          new WatchedStatement(stmt, key, sql));
+    }
+
+    private void report(WatchedStatement watched, long nanos, long rows, Connection con)
+    {
+        StringBuilder message = new StringBuilder("Slow SQL ").append(watched.key).append(": ");
+        message.append(nanos / 1000000L).append(" ms, ").append(rows).append(rows == 1 ? " row" : " rows");
+        if (watched.batches > 1)
+        {
+            message.append(" in a batch of ").append(watched.batches);
+        }
+        if (!PARAMETERS_NONE.equals(parameters) && !watched.parameters.isEmpty())
+        {
+            message.append(", parameters ");
+            appendParameters(message, watched.parameters);
+        }
+        if (explainSql != null && watched.query && con != null && shouldExplain(watched.key))
+        {
+            message.append("\nPlan:\n").append(explain(con, watched));
+        }
+        log.warn(message);
+    }
+
+    private boolean shouldExplain(String key)
+    {
+        long now = System.currentTimeMillis();
+        Long last = explainedAt.get(key);
+        if (last != null && now - last.longValue() < EXPLAIN_INTERVAL_MINUTES * 60 * 1000L)
+        {
+            return false;
+        }
+        explainedAt.put(key, Long.valueOf(now));
+        return true;
+    }
+
+    private String explain(Connection con, WatchedStatement watched)
+    {
+        boolean template = explainSql.indexOf("{0}") >= 0;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try
+        {
+            stmt = con.prepareStatement(template ? explainSql.replace("{0}", watched.sql) : explainSql);
+            if (template)
+            {
+                for (Map.Entry<Integer, Object> p : watched.parameters.entrySet())
+                {
+                    stmt.setObject(p.getKey().intValue(), p.getValue());
+                }
+            }
+            else
+            {
+                stmt.setString(1, watched.sql);
+            }
+            rs = stmt.executeQuery();
+            ResultSetMetaData meta = rs.getMetaData();
+            StringBuilder plan = new StringBuilder();
+            while (rs.next())
+            {
+                for (int i = 1; i <= meta.getColumnCount(); i++)
+                {
+                    plan.append(i > 1 ? " | " : "  ").append(rs.getString(i));
+                }
+                plan.append('\n');
+            }
+            return plan.toString();
+        }
+        catch (SQLException se)
+        {
+            return "  (not available: " + se.getMessage() + ")\n";
+        }
+        finally
+        {
+            try
+            {
+                if (rs != null)
+                {
+                    rs.close();
+                }
+                if (stmt != null)
+                {
+                    stmt.close();
+                }
+            }
+            catch (SQLException se)
+            {
+                log.debug("Unable to close the explain statement", se);
+            }
+        }
+    }
+
+    private void appendParameters(StringBuilder out, Map<Integer, Object> values)
+    {
+        out.append('[');
+        for (Map.Entry<Integer, Object> p : values.entrySet())
+        {
+            if (out.charAt(out.length() - 1) != '[')
+            {
+                out.append(", ");
+            }
+            out.append(p.getKey()).append(": ");
+            Object value = p.getValue();
+            if (value instanceof String)
+            {
+                String text = (String) value;
+                if (PARAMETERS_FULL.equals(parameters) && text.length() <= MAX_TEXT)
+                {
+                    out.append('\'').append(text).append('\'');
+                }
+                else if (PARAMETERS_FULL.equals(parameters))
+                {
+                    out.append('\'').append(text, 0, MAX_TEXT).append("...' (").append(text.length())
+                        .append(" chars)");
+                }
+                else
+                {
+                    out.append("<").append(text.length()).append(" chars>");
+                }
+            }
+            else
+            {
+                out.append(value);
+            }
+        }
+        out.append(']');
+    }
+
+    /**
+     * A streamed or binary parameter, logged by its length.
+     */
+    private static class Binary
+    {
+        private final long length;
+
+        private final String unit;
+
+        Binary(long length, String unit)
+        {
+            this.length = length;
+            this.unit = unit;
+        }
+
+        public String toString()
+        {
+            return length < 0 ? "<stream>" : "<" + length + " " + unit + ">";
+        }
+    }
+
+    /**
+     * Tracks the parameters, executions and rows of a statement, and reports
+     * an execution once it is complete.
+     */
+    private class WatchedStatement implements InvocationHandler
+    {
+        private final PreparedStatement stmt;
+
+        private final String key;
+
+        private final String sql;
+
+        private final Map<Integer, Object> parameters = new TreeMap<Integer, Object>();
+
+        private long started;
+
+        private long lastRead;
+
+        private long rows;
+
+        private int batches;
+
+        private boolean query;
+
+        private boolean running;
+
+        WatchedStatement(PreparedStatement stmt, String key, String sql)
+        {
+            this.stmt = stmt;
+            this.key = key;
+            this.sql = sql;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.startsWith("execute"))
+            {
+                finish();
+                started = System.nanoTime();
+                query = name.equals("executeQuery")
+                        || (name.equals("execute") && sql.trim().regionMatches(true, 0, "SELECT", 0, 6));
+                Object result = invoke(method, args);
+                lastRead = System.nanoTime();
+                running = true;
+                rows = 0;
+                if (result instanceof Integer)
+                {
+                    rows = ((Integer) result).intValue();
+                }
+                else if (result instanceof int[])
+                {
+                    for (int count : (int[]) result)
+                    {
+                        rows += Math.max(0, count);
+                    }
+                }
+                else if (Boolean.FALSE.equals(result))
+                {
+                    rows = Math.max(0, stmt.getUpdateCount());
+                }
+                else if (result instanceof ResultSet)
+                {
+                    return watch((ResultSet) result);
+                }
+                return result;
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer)
+            {
+                parameters.put((Integer) args[0], parameter(name, args));
+            }
+            else if (name.equals("clearParameters"))
+            {
+                parameters.clear();
+            }
+            else if (name.equals("addBatch"))
+            {
+                batches++;
+            }
+            else if (name.equals("close"))
+            {
+                finish();
+            }
+            else if (name.equals("getResultSet"))
+            {
+                ResultSet rs = (ResultSet) invoke(method, args);
+                return rs == null ? null : watch(rs);
+            }
+            else if ("equals".equals(name) && args != null && args.length == 1)
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            else if ("hashCode".equals(name) && args == null)
+            {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            return invoke(method, args);
+        }
+
+        private Object parameter(String setter, Object[] args)
+        {
+            if (setter.equals("setNull"))
+            {
+                return null;
+            }
+            if (setter.equals("setBytes"))
+            {
+                return new Binary(args[1] == null ? 0 : ((byte[]) args[1]).length, "bytes");
+            }
+            if (setter.endsWith("Stream") || setter.endsWith("Blob") || setter.endsWith("Clob"))
+            {
+                long length = args.length == 3 && args[2] instanceof Number ? ((Number) args[2]).longValue() : -1;
+                return new Binary(length, setter.endsWith("BinaryStream") || setter.endsWith("Blob") ? "bytes" : "chars");
+            }
+            return args[1];
+        }
+
+        private Object invoke(Method method, Object[] args) throws Throwable
+        {
+            try
+            {
+                return method.invoke(stmt, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        }
+
+        private ResultSet watch(ResultSet rs)
+        {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                                                      new Class<?>[] { ResultSet.class },
+                                                      new WatchedResultSet(rs, this));
+        }
+
+        void rowRead(boolean found)
+        {
+            lastRead = System.nanoTime();
+            if (found)
+            {
+                rows++;
+            }
+        }
+
+        /**
+         * Reports the current execution if it was slow.
+         */
+        void finish()
+        {
+            if (!running)
+            {
+                return;
+            }
+            running = false;
+            long nanos = lastRead - started;
+            if (nanos >= thresholdNanos)
+            {
+                Connection con = null;
+                try
+                {
+                    con = stmt.getConnection();
+                }
+                catch (SQLException se)
+                {
+                    // the plan is left out
+                }
+                report(this, nanos, rows, con);
+            }
+            batches = 0;
+        }
+    }
+
+    /**
+     * Times the rows read from a result set.
+     */
+    private static class WatchedResultSet implements InvocationHandler
+    {
+        private final ResultSet rs;
+
+        private final WatchedStatement statement;
+
+        WatchedResultSet(ResultSet rs, WatchedStatement statement)
+        {
+            this.rs = rs;
+            this.statement = statement;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if ("equals".equals(name) && args != null && args.length == 1)
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(name) && args == null)
+            {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            Object result;
+            try
+            {
+                result = method.invoke(rs, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+            if (name.equals("next"))
+            {
+                statement.rowRead(Boolean.TRUE.equals(result));
+            }
+            else if (name.equals("close"))
+            {
+                statement.finish();
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds an upload of unknown length until it can be written to the database
+ * with a known length. Uploads up to the threshold are kept in memory, larger
+ * ones are spilled to a temporary file, so an upload never takes more heap
+ * than the threshold plus a copy buffer. Call {@link #close()} when done to
+ * remove the temporary file.
+ */
+public class SpooledUpload
+{
+
+    protected static final Logger log = Logger.getLogger(SpooledUpload.class);
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+    private int count;
+
+    private final int threshold;
+
+    private final File directory;
+
+    private File file;
+
+    private OutputStream fileOut;
+
+    private long length;
+
+    private String hash;
+
+    /**
+     * Reads the stream to its end. The stream is not closed.
+     *
+     * @param threshold
+     *            the number of bytes kept in memory before spilling to a file
+     * @param directory
+     *            where to create the temporary file, null for the default
+     *            temporary directory
+     */
+    public SpooledUpload(InputStream in, int threshold, File directory) throws IOException
+    {
+        this(in, threshold, directory, null);
+    }
+
+    /**
+     * Reads the stream to its end and computes a digest of its content. The
+     * stream is not closed.
+     *
+     * @param digestAlgorithm
+     *            the MessageDigest algorithm, or null for no digest
+     * @see #getHash()
+     */
+    public SpooledUpload(InputStream in, int threshold, File directory, String digestAlgorithm) throws IOException
+    {
+        this(threshold, directory);
+        MessageDigest digest = null;
+        if (digestAlgorithm != null)
+        {
+            try
+            {
+                digest = MessageDigest.getInstance(digestAlgorithm);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IOException("Digest not available: " + digestAlgorithm);
+            }
+        }
+        try
+        {
+            byte[] chunk = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(chunk)) != -1)
+            {
+                if (digest != null)
+                {
+                    digest.update(chunk, 0, n);
+                }
+                write(chunk, 0, n);
+            }
+            if (digest != null)
+            {
+                hash = toHex(digest.digest());
+            }
+            finishWriting();
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an empty spool, to be filled through {@link #getOutputStream()}.
+     */
+    public SpooledUpload(int threshold, File directory)
+    {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    /**
+     * @return a stream appending to the spool; closing it completes the spool
+     */
+    public OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            public void write(int b) throws IOException
+            {
+                SpooledUpload.this.write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                SpooledUpload.this.write(b, off, len);
+            }
+
+            public void close() throws IOException
+            {
+                finishWriting();
+            }
+        };
+    }
+
+    private void write(byte[] chunk, int off, int n) throws IOException
+    {
+        if (fileOut == null && count + n > threshold)
+        {
+            file = File.createTempFile("jdbcprovider", ".upload", directory);
+            fileOut = new FileOutputStream(file);
+            fileOut.write(buffer, 0, count);
+            buffer = null;
+        }
+        if (fileOut != null)
+        {
+            fileOut.write(chunk, off, n);
+        }
+        else
+        {
+            append(chunk, off, n);
+        }
+        length += n;
+    }
+
+    private void append(byte[] chunk, int off, int n)
+    {
+        if (count + n > buffer.length)
+        {
+            byte[] grown = new byte[Math.min(Math.max(buffer.length * 2, count + n), threshold)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            buffer = grown;
+        }
+        System.arraycopy(chunk, off, buffer, count, n);
+        count += n;
+    }
+
+    private void finishWriting() throws IOException
+    {
+        if (fileOut != null)
+        {
+            OutputStream out = fileOut;
+            fileOut = null;
+            out.close();
+        }
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return the digest of the content as lower case hex, or null if no
+     *         digest was requested
+     */
+    public String getHash()
+    {
+        return hash;
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return true if the upload was spilled to a temporary file
+     */
+    public boolean isSpilled()
+    {
+        return file != null;
+    }
+
+    /**
+     * @return a new stream over the spooled bytes
+     */
+    public InputStream getInputStream() throws IOException
+    {
+        if (file != null)
+        {
+            return new BufferedInputStream(new FileInputStream(file), COPY_BUFFER_SIZE);
+        }
+        return new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    /**
+     * Releases the buffer and deletes the temporary file, if any.
+     */
+    public void close()
+    {
+        buffer = null;
+        if (fileOut != null)
+        {
+            try
+            {
+                fileOut.close();
+            }
+            catch (IOException ex)
+            {
+                // Ignore, the spool file is deleted anyway
+            }
+            fileOut = null;
+        }
+        if (file != null && !file.delete())
+        {
+            log.warn("Unable to delete upload spool file " + file);
+            file.deleteOnExit();
+        }
+        file = null;
+    }
+
+}
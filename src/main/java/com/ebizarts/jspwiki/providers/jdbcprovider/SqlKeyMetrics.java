@@ -0,0 +1,231 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call count, error count, rows, content bytes and a latency histogram for
+ * one SQL key. Recording only increments atomic counters, so it takes no
+ * locks.
+ * <p>
+ * Latencies are counted in microsecond buckets with four buckets per power of
+ * two, which bounds the error of a percentile to 25% at any scale.
+ */
+public class SqlKeyMetrics implements SqlKeyMetricsMBean
+{
+
+    /** Bucket 159 ends beyond 2^40 microseconds, about twelve days. */
+    private static final int BUCKETS = 160;
+
+    private final String key;
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong rows = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    public SqlKeyMetrics(String key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * Records one call.
+     *
+     * @param nanos
+     *            the time the call took
+     * @param failed
+     *            true if the call threw an exception
+     */
+    public void record(long nanos, boolean failed)
+    {
+        long micros = Math.max(0, nanos / 1000);
+        calls.incrementAndGet();
+        if (failed)
+        {
+            errors.incrementAndGet();
+        }
+        totalMicros.addAndGet(micros);
+        histogram.incrementAndGet(bucket(micros));
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros))
+        {
+            // retry
+        }
+    }
+
+    public void addRows(long n)
+    {
+        rows.addAndGet(n);
+    }
+
+    public void addBytes(long n)
+    {
+        bytes.addAndGet(n);
+    }
+
+    static int bucket(long micros)
+    {
+        if (micros < 4)
+        {
+            return (int) micros;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exp - 2)) & 3;
+        return Math.min(BUCKETS - 1, (exp - 1) * 4 + sub);
+    }
+
+    /**
+     * @return the largest latency in microseconds counted in the bucket
+     */
+    static long upperBound(int bucket)
+    {
+        if (bucket < 4)
+        {
+            return bucket;
+        }
+        int exp = bucket / 4 + 1;
+        int sub = bucket % 4;
+        return ((4L + sub + 1) << (exp - 2)) - 1;
+    }
+
+    /**
+     * @return the latency in milliseconds that the given share of the calls
+     *         did not exceed
+     */
+    public double getPercentileMillis(double share)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil(share * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return maxMicros.get() / 1000.0;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public long getCalls()
+    {
+        return calls.get();
+    }
+
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    public long getRows()
+    {
+        return rows.get();
+    }
+
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    public double getMeanMillis()
+    {
+        long n = calls.get();
+        return n == 0 ? 0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    public double getMaxMillis()
+    {
+        return maxMicros.get() / 1000.0;
+    }
+
+    public double getP50Millis()
+    {
+        return getPercentileMillis(0.50);
+    }
+
+    public double getP95Millis()
+    {
+        return getPercentileMillis(0.95);
+    }
+
+    public double getP99Millis()
+    {
+        return getPercentileMillis(0.99);
+    }
+
+    public void reset()
+    {
+        calls.set(0);
+        errors.set(0);
+        rows.set(0);
+        bytes.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            histogram.set(i, 0);
+        }
+    }
+
+    public String toString()
+    {
+        return key + ": calls=" + getCalls() + ", errors=" + getErrors() + ", rows=" + getRows() + ", bytes="
+               + getBytes() + ", p50=" + getP50Millis() + "ms, p95=" + getP95Millis() + "ms, p99=" + getP99Millis()
+               + "ms";
+    }
+
+}
@@ -0,0 +1,676 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Metrics per SQL key for one provider, published as JMX MBeans named
+ * <code>com.ebizarts.jspwiki.providers.jdbcprovider:type=SqlMetrics,wiki=...,provider=...,key=...</code>.
+ * <p>
+ * A metered statement times its executions under the key its SQL was read
+ * with, and counts the rows read from its result sets and the bytes of page
+ * and attachment content (the CONTENT and DATA columns) read and written, text
+ * counted in UTF-8. Which parameters and result columns hold content is found
+ * from the SQL of a key the first time it is metered.
+ * <p>
+ * Statements and their result sets are metered through dynamic proxies, which
+ * box the arguments of every call and invoke the driver reflectively. That
+ * costs little next to a database round trip but is not free, so metrics are
+ * off unless enabled.
+ */
+public class SqlMetrics
+{
+
+    protected static final Logger log = Logger.getLogger(SqlMetrics.class);
+
+    private static final String DOMAIN = "com.ebizarts.jspwiki.providers.jdbcprovider";
+
+    /** The key under which waiting for a connection is recorded. */
+    public static final String CONNECTION_KEY = "connection.acquire";
+
+    private final String wiki;
+
+    private final String provider;
+
+    private final ConcurrentHashMap<String, SqlKeyMetrics> metrics = new ConcurrentHashMap<String, SqlKeyMetrics>();
+
+    private final ConcurrentHashMap<String, ContentColumns> contentColumns = new ConcurrentHashMap<String, ContentColumns>();
+
+    public SqlMetrics(String wiki, String provider)
+    {
+        this.wiki = wiki;
+        this.provider = provider;
+    }
+
+    /**
+     * @return the metrics of the key, created and published on first use
+     */
+    public SqlKeyMetrics get(String key)
+    {
+        SqlKeyMetrics m = metrics.get(key);
+        if (m == null)
+        {
+            SqlKeyMetrics created = new SqlKeyMetrics(key);
+            m = metrics.putIfAbsent(key, created);
+            if (m == null)
+            {
+                m = created;
+                publish(created);
+            }
+        }
+        return m;
+    }
+
+    public Collection<SqlKeyMetrics> getAll()
+    {
+        return new ArrayList<SqlKeyMetrics>(metrics.values());
+    }
+
+    /**
+     * Records the time spent waiting for a connection.
+     */
+    public void recordConnection(long nanos, boolean failed)
+    {
+        get(CONNECTION_KEY).record(nanos, failed);
+    }
+
+    /**
+     * @return the statement, timed and counted under the key
+     */
+    public PreparedStatement meter(PreparedStatement stmt, String key, String sql)
+    {
+        SqlKeyMetrics m = get(key);
+        // statements built from a template only differ in their IN lists
+        ContentColumns content = contentColumns.get(key);
+        if (content == null)
+        {
+            content = new ContentColumns(sql);
+            contentColumns.putIfAbsent(key, content);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                          new Class<?>[] { PreparedStatement.class },
+                                                          new MeteredStatement(stmt, m, content));
+    }
+
+    /**
+     * Removes the MBeans of this provider.
+     */
+    public void unpublish()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (SqlKeyMetrics m : metrics.values())
+        {
+            try
+            {
+                ObjectName name = objectName(m.getKey());
+                if (server.isRegistered(name))
+                {
+                    server.unregisterMBean(name);
+                }
+            }
+            catch (JMException e)
+            {
+                log.debug("Unable to unregister metrics of " + m.getKey(), e);
+            }
+        }
+    }
+
+    private void publish(SqlKeyMetrics m)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(m.getKey());
+            if (server.isRegistered(name))
+            {
+                // left over from an earlier instance of the same wiki
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(m, name);
+        }
+        catch (JMException e)
+        {
+            log.warn("Unable to publish SQL metrics of " + m.getKey() + ": " + e.getMessage());
+        }
+        catch (SecurityException e)
+        {
+            log.warn("Not allowed to publish SQL metrics: " + e.getMessage());
+        }
+    }
+
+    private ObjectName objectName(String key) throws JMException
+    {
+        return new ObjectName(DOMAIN + ":type=SqlMetrics,wiki=" + ObjectName.quote(wiki) + ",provider=" + provider
+                              + ",key=" + ObjectName.quote(key));
+    }
+
+    /**
+     * @return one line per key
+     */
+    public String toString()
+    {
+        List<SqlKeyMetrics> all = new ArrayList<SqlKeyMetrics>(metrics.values());
+        StringBuilder out = new StringBuilder(provider).append(" SQL metrics:");
+        for (SqlKeyMetrics m : all)
+        {
+            out.append("\n  ").append(m);
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the bytes of a value, text counted in UTF-8
+     */
+    static long sizeOf(Object value)
+    {
+        if (value instanceof String)
+        {
+            String text = (String) value;
+            long size = 0;
+            for (int i = 0; i < text.length(); i++)
+            {
+                char c = text.charAt(i);
+                if (c < 0x80)
+                {
+                    size += 1;
+                }
+                else if (c < 0x800)
+                {
+                    size += 2;
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                         && Character.isLowSurrogate(text.charAt(i + 1)))
+                {
+                    size += 4;
+                    i++;
+                }
+                else
+                {
+                    size += 3;
+                }
+            }
+            return size;
+        }
+        if (value instanceof byte[])
+        {
+            return ((byte[]) value).length;
+        }
+        return 0;
+    }
+
+    /**
+     * The parameters and result columns of a statement that hold page or
+     * attachment content. Parameters are found as the values of an INSERT
+     * column list or the right hand side of <code>column = ?</code>, result
+     * columns from the select list; anything else is not counted.
+     */
+    static class ContentColumns
+    {
+        private final boolean[] parameters;
+
+        private final boolean[] columns;
+
+        ContentColumns(String sql)
+        {
+            String s = blankLiterals(sql.replace("\"", "").replace("[", "").replace("]", "")
+                                        .toUpperCase(Locale.ENGLISH));
+            parameters = findParameters(s);
+            columns = findColumns(s);
+        }
+
+        /**
+         * @return true if the parameter, counted from 1, holds content
+         */
+        boolean isParameter(int index)
+        {
+            return index > 0 && index < parameters.length && parameters[index];
+        }
+
+        /**
+         * @return true if the result column, counted from 1, holds content
+         */
+        boolean isColumn(int index)
+        {
+            return index > 0 && index < columns.length && columns[index];
+        }
+
+        static boolean isContent(String column)
+        {
+            return "CONTENT".equalsIgnoreCase(column) || "DATA".equalsIgnoreCase(column);
+        }
+
+        private static boolean[] findParameters(String s)
+        {
+            List<Boolean> found = new ArrayList<Boolean>();
+            found.add(Boolean.FALSE); // parameters count from 1
+            List<String> insertColumns = null;
+            int values = -1;
+            int valuesEnd = -1;
+            if (s.trim().startsWith("INSERT"))
+            {
+                int open = s.indexOf('(');
+                int close = open < 0 ? -1 : closing(s, open);
+                values = close < 0 ? -1 : s.indexOf("VALUES", close);
+                values = values < 0 ? -1 : s.indexOf('(', values);
+                if (values >= 0)
+                {
+                    valuesEnd = closing(s, values);
+                    insertColumns = split(s.substring(open + 1, close));
+                }
+            }
+            for (int i = 0; i < s.length(); i++)
+            {
+                if (s.charAt(i) != '?')
+                {
+                    continue;
+                }
+                String column;
+                if (insertColumns != null && i > values && i < valuesEnd)
+                {
+                    int item = split(s.substring(values + 1, i)).size() - 1;
+                    column = item < insertColumns.size() ? lastName(insertColumns.get(item)) : null;
+                }
+                else
+                {
+                    column = assignedColumn(s, i);
+                }
+                found.add(Boolean.valueOf(isContent(column)));
+            }
+            boolean[] result = new boolean[found.size()];
+            for (int i = 0; i < result.length; i++)
+            {
+                result[i] = found.get(i).booleanValue();
+            }
+            return result;
+        }
+
+        private static boolean[] findColumns(String s)
+        {
+            int select = s.indexOf("SELECT");
+            if (select < 0)
+            {
+                return new boolean[0];
+            }
+            int depth = 0;
+            int from = -1;
+            for (int i = select; i < s.length() && from < 0; i++)
+            {
+                char c = s.charAt(i);
+                if (c == '(')
+                {
+                    depth++;
+                }
+                else if (c == ')')
+                {
+                    depth--;
+                }
+                else if (depth == 0 && s.startsWith("FROM", i) && i > 0 && !isNamePart(s.charAt(i - 1))
+                         && (i + 4 == s.length() || !isNamePart(s.charAt(i + 4))))
+                {
+                    from = i;
+                }
+            }
+            List<String> items = split(s.substring(select + "SELECT".length(), from < 0 ? s.length() : from));
+            boolean[] result = new boolean[items.size() + 1];
+            for (int i = 0; i < items.size(); i++)
+            {
+                result[i + 1] = isContent(lastName(items.get(i)));
+            }
+            return result;
+        }
+
+        /**
+         * @return the column a parameter is compared with or assigned to
+         */
+        private static String assignedColumn(String s, int parameter)
+        {
+            int i = parameter - 1;
+            while (i >= 0 && Character.isWhitespace(s.charAt(i)))
+            {
+                i--;
+            }
+            if (i < 0 || s.charAt(i) != '=')
+            {
+                return null;
+            }
+            return lastName(s.substring(0, i));
+        }
+
+        /**
+         * @return the trailing name of an expression, without its table
+         */
+        private static String lastName(String expression)
+        {
+            int end = expression.length();
+            while (end > 0 && !isNamePart(expression.charAt(end - 1)))
+            {
+                end--;
+            }
+            int start = end;
+            while (start > 0 && isNamePart(expression.charAt(start - 1)))
+            {
+                start--;
+            }
+            return expression.substring(start, end);
+        }
+
+        private static boolean isNamePart(char c)
+        {
+            return Character.isLetterOrDigit(c) || c == '_';
+        }
+
+        /**
+         * @return the items of a list, split at the commas outside parentheses
+         */
+        private static List<String> split(String list)
+        {
+            List<String> items = new ArrayList<String>();
+            int depth = 0;
+            int start = 0;
+            for (int i = 0; i < list.length(); i++)
+            {
+                char c = list.charAt(i);
+                if (c == '(')
+                {
+                    depth++;
+                }
+                else if (c == ')')
+                {
+                    depth--;
+                }
+                else if (c == ',' && depth == 0)
+                {
+                    items.add(list.substring(start, i));
+                    start = i + 1;
+                }
+            }
+            items.add(list.substring(start));
+            return items;
+        }
+
+        private static int closing(String s, int open)
+        {
+            int depth = 0;
+            for (int i = open; i < s.length(); i++)
+            {
+                if (s.charAt(i) == '(')
+                {
+                    depth++;
+                }
+                else if (s.charAt(i) == ')' && --depth == 0)
+                {
+                    return i;
+                }
+            }
+            return s.length();
+        }
+
+        /**
+         * @return the SQL with the characters of string literals blanked out
+         */
+        private static String blankLiterals(String s)
+        {
+            char[] chars = s.toCharArray();
+            boolean literal = false;
+            for (int i = 0; i < chars.length; i++)
+            {
+                if (chars[i] == '\'')
+                {
+                    literal = !literal;
+                }
+                else if (literal)
+                {
+                    chars[i] = ' ';
+                }
+            }
+            return new String(chars);
+        }
+    }
+
+    /**
+     * Times the executions of a statement and meters its result sets.
+     */
+    private static class MeteredStatement implements InvocationHandler
+    {
+        private final PreparedStatement stmt;
+
+        private final SqlKeyMetrics metrics;
+
+        private final ContentColumns content;
+
+        MeteredStatement(PreparedStatement stmt, SqlKeyMetrics metrics, ContentColumns content)
+        {
+            this.stmt = stmt;
+            this.metrics = metrics;
+            this.content = content;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.startsWith("execute"))
+            {
+                long start = System.nanoTime();
+                boolean failed = true;
+                try
+                {
+                    Object result = method.invoke(stmt, args);
+                    failed = false;
+                    if (result instanceof ResultSet)
+                    {
+                        return meter((ResultSet) result);
+                    }
+                    return result;
+                }
+                catch (InvocationTargetException e)
+                {
+                    throw e.getCause();
+                }
+                finally
+                {
+                    metrics.record(System.nanoTime() - start, failed);
+                }
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer
+                && content.isParameter(((Integer) args[0]).intValue()))
+            {
+                if (name.equals("setBinaryStream") && args.length == 3 && args[2] instanceof Number)
+                {
+                    metrics.addBytes(((Number) args[2]).longValue());
+                }
+                else
+                {
+                    metrics.addBytes(sizeOf(args[1]));
+                }
+            }
+            if (name.equals("getResultSet"))
+            {
+                ResultSet rs = (ResultSet) invoke(method, args);
+                return rs == null ? null : meter(rs);
+            }
+            if ("equals".equals(name) && args != null && args.length == 1)
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(name) && args == null)
+            {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            return invoke(method, args);
+        }
+
+        private Object invoke(Method method, Object[] args) throws Throwable
+        {
+            try
+            {
+                return method.invoke(stmt, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        }
+
+        private ResultSet meter(ResultSet rs)
+        {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                                                      new Class<?>[] { ResultSet.class },
+                                                      new MeteredResultSet(rs, metrics, content));
+        }
+    }
+
+    /**
+     * Counts the rows and content bytes read from a result set.
+     */
+    private static class MeteredResultSet implements InvocationHandler
+    {
+        private final ResultSet rs;
+
+        private final SqlKeyMetrics metrics;
+
+        private final ContentColumns content;
+
+        MeteredResultSet(ResultSet rs, SqlKeyMetrics metrics, ContentColumns content)
+        {
+            this.rs = rs;
+            this.metrics = metrics;
+            this.content = content;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if ("equals".equals(name) && args != null && args.length == 1)
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(name) && args == null)
+            {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            Object result;
+            try
+            {
+                result = method.invoke(rs, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+            if (name.equals("next"))
+            {
+                if (Boolean.TRUE.equals(result))
+                {
+                    metrics.addRows(1);
+                }
+            }
+            else if ((name.equals("getString") || name.equals("getBytes")) && isContent(args))
+            {
+                metrics.addBytes(sizeOf(result));
+            }
+            else if (name.equals("getBinaryStream") && result != null && isContent(args))
+            {
+                return new CountingInputStream((InputStream) result, metrics);
+            }
+            return result;
+        }
+
+        private boolean isContent(Object[] args)
+        {
+            if (args[0] instanceof Integer)
+            {
+                return content.isColumn(((Integer) args[0]).intValue());
+            }
+            return ContentColumns.isContent((String) args[0]);
+        }
+    }
+
+    /**
+     * Counts the bytes streamed from a binary column.
+     */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        private final SqlKeyMetrics metrics;
+
+        CountingInputStream(InputStream in, SqlKeyMetrics metrics)
+        {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b != -1)
+            {
+                metrics.addBytes(1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if (n > 0)
+            {
+                metrics.addBytes(n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            metrics.addBytes(skipped);
+            return skipped;
+        }
+    }
+
+}
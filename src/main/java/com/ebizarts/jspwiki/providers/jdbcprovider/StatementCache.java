@@ -0,0 +1,282 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The prepared statements of one connection, kept for reuse. Each flavour SQL
+ * statement has a fixed text, so the text serves as the key.
+ * <p>
+ * A statement is checked out of the cache while in use, so two users of the
+ * same connection never share one. The caller gets a wrapper whose
+ * <code>close()</code> clears the parameters and puts the statement back;
+ * when the cache is full the least recently used statement is really closed.
+ * A statement whose fetch size, row limit or timeout was changed is closed
+ * rather than reused, so settings never leak to the next caller.
+ */
+public class StatementCache
+{
+
+    protected static final Logger log = Logger.getLogger(StatementCache.class);
+
+    private final Connection connection;
+
+    private final int maxSize;
+
+    private final AtomicLong hits;
+
+    private final AtomicLong misses;
+
+    private final LinkedHashMap<String, PreparedStatement> idle;
+
+    private boolean closed;
+
+    /**
+     * @param connection
+     *            the connection whose statements are cached
+     * @param maxSize
+     *            the number of idle statements kept
+     * @param hits
+     *            counts statements served from the cache
+     * @param misses
+     *            counts statements that had to be prepared
+     */
+    public StatementCache(Connection connection, int maxSize, AtomicLong hits, AtomicLong misses)
+    {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.idle = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+    }
+
+    /**
+     * @return a prepared statement for the SQL; closing it returns it to the
+     *         cache
+     */
+    public PreparedStatement prepare(String sql) throws SQLException
+    {
+        PreparedStatement stmt;
+        synchronized (this)
+        {
+            stmt = closed ? null : idle.remove(sql);
+        }
+        if (stmt != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+            stmt = connection.prepareStatement(sql);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                          new Class<?>[] { PreparedStatement.class },
+                                                          new Checkout(sql, stmt));
+    }
+
+    /**
+     * Closes the idle statements; statements in use are closed when they are
+     * returned.
+     */
+    public void close()
+    {
+        List<PreparedStatement> statements;
+        synchronized (this)
+        {
+            closed = true;
+            statements = new ArrayList<PreparedStatement>(idle.values());
+            idle.clear();
+        }
+        for (PreparedStatement stmt : statements)
+        {
+            closeQuietly(stmt);
+        }
+    }
+
+    public synchronized int size()
+    {
+        return idle.size();
+    }
+
+    private void giveBack(String sql, PreparedStatement stmt, boolean reusable)
+    {
+        if (reusable)
+        {
+            try
+            {
+                stmt.clearParameters();
+                stmt.clearWarnings();
+            }
+            catch (SQLException e)
+            {
+                reusable = false;
+            }
+        }
+        PreparedStatement evicted = null;
+        synchronized (this)
+        {
+            if (reusable && !closed && !idle.containsKey(sql))
+            {
+                idle.put(sql, stmt);
+                stmt = null;
+                if (idle.size() > maxSize)
+                {
+                    Iterator<Map.Entry<String, PreparedStatement>> eldest = idle.entrySet().iterator();
+                    evicted = eldest.next().getValue();
+                    eldest.remove();
+                }
+            }
+        }
+        closeQuietly(stmt);
+        closeQuietly(evicted);
+    }
+
+    private static void closeQuietly(PreparedStatement stmt)
+    {
+        if (stmt != null)
+        {
+            try
+            {
+                stmt.close();
+            }
+            catch (SQLException e)
+            {
+                log.debug("Error closing cached statement", e);
+            }
+        }
+    }
+
+    /**
+     * One use of a cached statement, ended by <code>close()</code>.
+     */
+    private class Checkout implements InvocationHandler
+    {
+        private final String sql;
+
+        private PreparedStatement stmt;
+
+        private boolean reusable = true;
+
+        private boolean batched;
+
+        Checkout(String sql, PreparedStatement stmt)
+        {
+            this.sql = sql;
+            this.stmt = stmt;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            int arity = method.getParameterTypes().length;
+            if ("close".equals(name) && arity == 0)
+            {
+                if (stmt != null)
+                {
+                    PreparedStatement returned = stmt;
+                    stmt = null;
+                    if (batched)
+                    {
+                        try
+                        {
+                            returned.clearBatch();
+                        }
+                        catch (SQLException e)
+                        {
+                            reusable = false;
+                        }
+                    }
+                    giveBack(sql, returned, reusable);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name) && arity == 0 && stmt == null)
+            {
+                return Boolean.TRUE;
+            }
+            if ("equals".equals(name) && arity == 1)
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if ("hashCode".equals(name) && arity == 0)
+            {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            if (stmt == null)
+            {
+                throw new SQLException("Statement has been closed");
+            }
+            if (name.equals("addBatch"))
+            {
+                batched = true;
+            }
+            else if (name.startsWith("set") && args != null && args.length > 0
+                     && !(args[0] instanceof Integer && isParameterSetter(name)))
+            {
+                // a statement setting such as setFetchSize or setMaxRows
+                reusable = false;
+            }
+            try
+            {
+                return method.invoke(stmt, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Parameter setters take the parameter index first; the statement
+         * settings with an int argument are listed here.
+         */
+        private boolean isParameterSetter(String name)
+        {
+            return !name.equals("setFetchSize") && !name.equals("setMaxRows") && !name.equals("setQueryTimeout")
+                   && !name.equals("setFetchDirection") && !name.equals("setMaxFieldSize");
+        }
+    }
+
+}
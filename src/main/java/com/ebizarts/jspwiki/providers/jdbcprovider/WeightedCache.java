@@ -0,0 +1,270 @@
+/*
+    JDBCProvider - an RDBMS backed page- and attachment provider for
+    JSPWiki.
+
+    Copyright (C) 2006-2007 The JDBCProvider development team.
+    Copyright (C) 2008-2014 David Emerson (david@ebizarts.com)
+
+    The JDBCProvider developer team members are:
+      Xan Gregg
+      Soeren Berg Glasius
+      Mikkel Troest
+      Milt Taylor
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package com.ebizarts.jspwiki.providers.jdbcprovider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe cache bounded by the total weight (usually the size in bytes)
+ * of its values rather than by the number of entries. New entries go to a
+ * small LRU window; entries falling out of the window only replace entries of
+ * the main LRU area if they have been requested more often recently, as
+ * estimated by a {@link FrequencySketch} (W-TinyLFU admission). This keeps a
+ * burst of one-off requests, like a crawler walking the version history of
+ * every page, from flushing out the entries that are really popular.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+public class WeightedCache<K, V>
+{
+
+    /** Assumed average entry weight, used to size the frequency sketch. */
+    private static final int AVERAGE_WEIGHT = 4096;
+
+    private final long maxWeight;
+
+    private final long maxWindowWeight;
+
+    private final LinkedHashMap<K, Entry<V>> window = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+    private final LinkedHashMap<K, Entry<V>> main = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+    private final FrequencySketch sketch;
+
+    private long windowWeight;
+
+    private long mainWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * @param maxWeight
+     *            the total weight the cache may hold; 0 disables the cache
+     */
+    public WeightedCache(long maxWeight)
+    {
+        this.maxWeight = Math.max(0, maxWeight);
+        this.maxWindowWeight = Math.max(1, this.maxWeight / 100);
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, this.maxWeight / AVERAGE_WEIGHT));
+    }
+
+    public boolean isEnabled()
+    {
+        return maxWeight > 0;
+    }
+
+    /**
+     * @return the cached value, or null if the key is not cached
+     */
+    public V get(K key)
+    {
+        if (!isEnabled())
+        {
+            return null;
+        }
+        Entry<V> entry;
+        synchronized (this)
+        {
+            sketch.increment(key);
+            entry = window.get(key);
+            if (entry == null)
+            {
+                entry = main.get(key);
+            }
+        }
+        if (entry == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Offers a value to the cache. Values heavier than the main area are
+     * never stored.
+     */
+    public void put(K key, V value, long weight)
+    {
+        if (!isEnabled() || value == null || weight > maxWeight - maxWindowWeight)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            removeEntry(key);
+            window.put(key, new Entry<V>(value, weight));
+            windowWeight += weight;
+            while (windowWeight > maxWindowWeight && !window.isEmpty())
+            {
+                Iterator<Map.Entry<K, Entry<V>>> eldest = window.entrySet().iterator();
+                Map.Entry<K, Entry<V>> candidate = eldest.next();
+                eldest.remove();
+                windowWeight -= candidate.getValue().weight;
+                admit(candidate.getKey(), candidate.getValue());
+            }
+        }
+    }
+
+    public synchronized void remove(K key)
+    {
+        removeEntry(key);
+    }
+
+    public synchronized void clear()
+    {
+        window.clear();
+        main.clear();
+        windowWeight = 0;
+        mainWeight = 0;
+    }
+
+    /**
+     * @return a snapshot of the currently cached keys
+     */
+    public synchronized List<K> keys()
+    {
+        List<K> keys = new ArrayList<K>(window.keySet());
+        keys.addAll(main.keySet());
+        return keys;
+    }
+
+    public synchronized long getWeight()
+    {
+        return windowWeight + mainWeight;
+    }
+
+    public long getMaxWeight()
+    {
+        return maxWeight;
+    }
+
+    public synchronized int size()
+    {
+        return window.size() + main.size();
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return how many candidates were turned away by the admission policy
+     */
+    public long getRejectionCount()
+    {
+        return rejections.get();
+    }
+
+    public String toString()
+    {
+        return "size=" + size() + ", weight=" + getWeight() + "/" + maxWeight + ", hits=" + getHitCount()
+               + ", misses=" + getMissCount() + ", rejected=" + getRejectionCount();
+    }
+
+    /**
+     * Moves a candidate evicted from the window into the main area, evicting
+     * less popular main entries to make room for it. Must be called with the
+     * lock held.
+     */
+    private void admit(K key, Entry<V> candidate)
+    {
+        long maxMainWeight = maxWeight - maxWindowWeight;
+        int candidateFrequency = sketch.frequency(key);
+        List<K> victims = new ArrayList<K>();
+        long freed = 0;
+        Iterator<Map.Entry<K, Entry<V>>> it = main.entrySet().iterator();
+        while (mainWeight - freed + candidate.weight > maxMainWeight)
+        {
+            // an entry bigger than the main area is rejected in put()
+            Map.Entry<K, Entry<V>> victim = it.next();
+            if (sketch.frequency(victim.getKey()) >= candidateFrequency)
+            {
+                rejections.incrementAndGet();
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue().weight;
+        }
+        for (K victim : victims)
+        {
+            main.remove(victim);
+        }
+        mainWeight -= freed;
+        main.put(key, candidate);
+        mainWeight += candidate.weight;
+    }
+
+    private void removeEntry(K key)
+    {
+        Entry<V> entry = window.remove(key);
+        if (entry != null)
+        {
+            windowWeight -= entry.weight;
+        }
+        entry = main.remove(key);
+        if (entry != null)
+        {
+            mainWeight -= entry.weight;
+        }
+    }
+
+    private static final class Entry<V>
+    {
+        final V value;
+
+        final long weight;
+
+        Entry(V value, long weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+-- 
+-- JDBCProvider - a RDBMS backed page- and attachment provider for
+-- JSPWiki.
+-- 
+-- Copyright (C) 2006-2007 The JDBCProvider development team.
+-- 
+-- The JDBCProvider developer team members are:
+--   Xan Gregg
+--   Soeren Berg Glasius
+--   Mikkel Troest
+--   Milt Taylor
+-- 
+-- This program is free software; you can redistribute it and/or modify
+-- it under the terms of the GNU Lesser General Public License as published by
+-- the Free Software Foundation; either version 2.1 of the License, or
+-- (at your option) any later version.
+-- 
+-- This program is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+-- GNU Lesser General Public License for more details.
+-- 
+-- You should have received a copy of the GNU Lesser General Public License
+-- along with this program; if not, write to the Free Software
+-- Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+--
+-- Tables for an embedded H2 database. The statements only create what is
+-- missing, so the script can be run again after an upgrade; with
+-- database.create = true the provider runs it on start.
+
+CREATE TABLE IF NOT EXISTS WIKI_PAGE
+    (
+        NAME               VARCHAR (100)    NOT NULL,
+        VERSION            INTEGER          NOT NULL,
+        CHANGE_TIME        TIMESTAMP,
+        CHANGE_BY          VARCHAR (50)     NOT NULL,
+        CHANGE_NOTE        VARCHAR (100),
+        CONTENT            CLOB             NOT NULL,
+        
+        PRIMARY KEY        (NAME, VERSION)
+    );
+
+CREATE INDEX IF NOT EXISTS WIKI_PAGE_CHANGE_TIME_IX ON WIKI_PAGE (CHANGE_TIME);
+
+CREATE TABLE IF NOT EXISTS WIKI_ATT
+    (
+        PAGENAME           VARCHAR (100)    NOT NULL,
+        FILENAME           VARCHAR (100)    NOT NULL,
+        VERSION            INTEGER          NOT NULL,
+        CHANGE_TIME        TIMESTAMP,
+        CHANGE_BY          VARCHAR (50)     NOT NULL,
+        CHANGE_NOTE        VARCHAR (100),
+        DATA               BLOB,
+        LENGTH             INTEGER,
+        DATA_HASH          CHAR (64),
+        
+        PRIMARY KEY        (PAGENAME, FILENAME, VERSION)
+    );
+
+CREATE INDEX IF NOT EXISTS WIKI_ATT_CHANGE_TIME_IX ON WIKI_ATT (CHANGE_TIME);
+
+-- Search index, only needed with search.mode = index
+CREATE TABLE IF NOT EXISTS WIKI_PAGE_TERM
+    (
+        TERM               VARCHAR (50)     NOT NULL,
+        NAME               VARCHAR (100)    NOT NULL,
+        FREQ               INTEGER          NOT NULL,
+        
+        PRIMARY KEY        (TERM, NAME)
+    );
+
+CREATE INDEX IF NOT EXISTS WIKI_PAGE_TERM_NAME_IX ON WIKI_PAGE_TERM (NAME);
+
+-- Attachment search index, only needed with search.mode = index
+CREATE TABLE IF NOT EXISTS WIKI_ATT_TERM
+    (
+        TERM               VARCHAR (50)     NOT NULL,
+        PAGENAME           VARCHAR (100)    NOT NULL,
+        FILENAME           VARCHAR (100)    NOT NULL,
+        FREQ               INTEGER          NOT NULL,
+        
+        PRIMARY KEY        (TERM, PAGENAME, FILENAME)
+    );
+
+CREATE INDEX IF NOT EXISTS WIKI_ATT_TERM_NAME_IX ON WIKI_ATT_TERM (PAGENAME, FILENAME);
+
+-- Attachment blob storage, only needed with attachment.storage = dedup
+CREATE TABLE IF NOT EXISTS WIKI_ATT_BLOB
+    (
+        DATA_HASH          CHAR (64)        NOT NULL,
+        DATA               BLOB,
+        LENGTH             INTEGER,
+        REFCOUNT           INTEGER          NOT NULL,
+        
+        PRIMARY KEY        (DATA_HASH)
+    );
+
+-- Latest version of every page, only needed with page.latestTable = true
+CREATE TABLE IF NOT EXISTS WIKI_PAGE_LATEST
+    (
+        NAME               VARCHAR (100)    NOT NULL,
+        VERSION            INTEGER          NOT NULL,
+        CHANGE_TIME        TIMESTAMP,
+        CHANGE_BY          VARCHAR (50)     NOT NULL,
+        CHANGE_NOTE        VARCHAR (100),
+        
+        PRIMARY KEY        (NAME)
+    );
+
+CREATE INDEX IF NOT EXISTS WIKI_PAGE_LATEST_CHANGE_TIME_IX ON WIKI_PAGE_LATEST (CHANGE_TIME);